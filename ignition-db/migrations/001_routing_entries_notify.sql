@@ -0,0 +1,38 @@
+-- Notifies bin labels of changed routing entries to the SCADA gateway routing entry cache
+-- (see com.boweryfarming.scada.conveyor.RoutingEntryCache)
+--
+-- Run as the owner of bin_conveyance_routing_entries when deploying, the gateway only checks for
+-- the trigger and reads every routing entry from the database while it's missing:
+--   psql -U <owner> -d <database> -f 001_routing_entries_notify.sql
+-- Safe to run again, everything is replaced.
+create or replace function notify_bin_conveyance_routing_entries() returns trigger as $$
+begin
+    if (tg_op = 'DELETE') then
+        perform pg_notify('bin_conveyance_routing_entries', old.bin_label);
+    else
+        if (tg_op = 'UPDATE' and old.bin_label is distinct from new.bin_label) then
+            perform pg_notify('bin_conveyance_routing_entries', old.bin_label);
+        end if;
+        perform pg_notify('bin_conveyance_routing_entries', new.bin_label);
+    end if;
+    return null;
+end;
+$$ language plpgsql;
+
+drop trigger if exists bin_conveyance_routing_entries_notify on bin_conveyance_routing_entries;
+create trigger bin_conveyance_routing_entries_notify
+    after insert or update or delete on bin_conveyance_routing_entries
+    for each row execute procedure notify_bin_conveyance_routing_entries();
+
+-- truncate can't be observed per row, notify an empty payload to invalidate everything
+create or replace function notify_bin_conveyance_routing_entries_truncate() returns trigger as $$
+begin
+    perform pg_notify('bin_conveyance_routing_entries', '');
+    return null;
+end;
+$$ language plpgsql;
+
+drop trigger if exists bin_conveyance_routing_entries_notify_truncate on bin_conveyance_routing_entries;
+create trigger bin_conveyance_routing_entries_notify_truncate
+    after truncate on bin_conveyance_routing_entries
+    for each statement execute procedure notify_bin_conveyance_routing_entries_truncate();
@@ -36,7 +36,7 @@ public class BoweryScadaDevice extends ManagedDevice {
         getLifecycleManager().addStartupTask(this::onStartup);
         getLifecycleManager().addShutdownTask(this::onShutdown);
 
-        serviceContext = new ServiceContext(this, deviceContext, getNodeContext(), getNodeManager());
+        serviceContext = new ServiceContext(this, deviceContext, settings, getNodeContext(), getNodeManager());
     }
 
     @Nonnull
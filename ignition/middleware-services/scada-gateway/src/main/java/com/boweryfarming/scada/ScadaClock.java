@@ -0,0 +1,50 @@
+package com.boweryfarming.scada;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of time and delays for the services, shared through {@link ServiceContext#getClock()}.
+ *
+ * {@link SystemClock} is the wall clock. {@link VirtualClock} jumps ahead to the next pending task
+ * whenever the services are idle, so a day long soak test finishes in minutes while routing
+ * deadlines, retry delays and valid_till checks still see the time they expect. Code on the
+ * conveyor and simulator paths takes time from here instead of System.
+ */
+public abstract class ScadaClock {
+    /** Keeps a virtual clock from moving ahead, see {@link ScadaClock#hold(String)} */
+    public interface Hold {
+        /** Let the clock move again, later calls do nothing */
+        void release();
+    }
+
+    static final Hold NO_HOLD = () -> { };
+
+    /** Monotonic time in nanos, like System.nanoTime() */
+    public abstract long nanoTime();
+
+    /** Epoch millis, like System.currentTimeMillis() */
+    public abstract long currentTimeMillis();
+
+    /** Wait for the duration to pass on this clock */
+    public abstract void sleep(long duration, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * @param name prefix of the thread names
+     * @param threads max tasks of the scheduler running at the same time
+     */
+    public abstract ScadaScheduler newScheduler(String name, int threads);
+
+    /**
+     * Keep the clock from moving ahead until the hold is released, for work in progress outside the
+     * clock's schedulers e.g., a tag change on its way through Ignition. The wall clock ignores holds.
+     * @param reason logged if the hold is never released
+     */
+    public Hold hold(String reason) {
+        return NO_HOLD;
+    }
+
+    public abstract boolean isVirtual();
+
+    public void close() {
+    }
+}
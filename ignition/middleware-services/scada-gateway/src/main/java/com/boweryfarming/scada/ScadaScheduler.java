@@ -0,0 +1,35 @@
+package com.boweryfarming.scada;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.jodah.failsafe.util.concurrent.Scheduler;
+
+/**
+ * Runs delayed tasks on the time of a {@link ScadaClock}, see {@link ScadaClock#newScheduler}.
+ * Tasks run on the scheduler's own threads, so busy tasks of one scheduler never delay another.
+ */
+public abstract class ScadaScheduler implements Executor {
+    public abstract <T> ScheduledFuture<T> schedule(Callable<T> task, long delay, TimeUnit unit);
+
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return schedule(Executors.callable(task), delay, unit);
+    }
+
+    /** Run the task now */
+    @Override
+    public void execute(Runnable task) {
+        schedule(task, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /** Scheduler for Failsafe executions, so retry delays run on the clock too */
+    public Scheduler failsafe() {
+        return this::schedule;
+    }
+
+    /** Cancel pending tasks and interrupt running ones */
+    public abstract void shutdownNow();
+}
@@ -0,0 +1,271 @@
+package com.boweryfarming.scada;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+
+/**
+ * Runs tasks one at a time in submission order on a single worker thread.
+ *
+ * Pending tasks are kept in a fixed ring of preallocated slots, so submitting doesn't allocate and
+ * the backlog is bounded by the capacity. What happens to a task submitted while the ring is full
+ * is set by the {@link OverflowPolicy}. Closing wakes the worker and blocked submitters right away;
+ * the worker stops after its current task and pending tasks are dropped. An Error thrown by a task
+ * stops the worker and closes the engine the same way, so submitters never wait on a dead worker.
+ */
+public class SerialTaskEngine implements Runnable {
+    public enum OverflowPolicy {
+        /** the task isn't queued, submit returns false */
+        REJECT,
+        /** submit waits for a free slot, rejects when called from the worker itself */
+        BLOCK,
+        /** the oldest pending task is dropped to make room */
+        DROP_OLDEST
+    }
+
+    private final String name;
+    private final Logger logger;
+    private final OverflowPolicy policy;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    // ring of pending tasks, guarded by lock
+    private final Runnable[] tasks;
+    private final long[] enqueuedAtNanos;
+    private int head = 0;
+    private int count = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final AtomicLong submittedCount = new AtomicLong(0);
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong executedCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong maxQueueDepth = new AtomicLong(0);
+    private final AtomicLong totalLatencyNanos = new AtomicLong(0);
+    private final AtomicLong maxLatencyNanos = new AtomicLong(0);
+    private final AtomicLong maxRunNanos = new AtomicLong(0);
+
+    /**
+     * @param name worker thread name
+     * @param capacity max pending tasks
+     */
+    public SerialTaskEngine(String name, int capacity, OverflowPolicy policy, Logger logger) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid task engine capacity:" + capacity);
+        }
+        this.name = name;
+        this.logger = logger;
+        this.policy = policy;
+        this.tasks = new Runnable[capacity];
+        this.enqueuedAtNanos = new long[capacity];
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queue the task to run after every task submitted before
+     * @return false if the task was rejected because the engine is full or closed
+     */
+    public boolean submit(Runnable task) {
+        long now = System.nanoTime();
+        boolean droppedOldest = false;
+        lock.lock();
+        try {
+            while (count == tasks.length && !closed) {
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    tasks[head] = null;
+                    head = (head + 1) % tasks.length;
+                    count--;
+                    droppedCount.incrementAndGet();
+                    droppedOldest = true;
+                } else if (policy == OverflowPolicy.REJECT || Thread.currentThread() == thread) {
+                    // the worker waiting on itself would never wake up
+                    rejectedCount.incrementAndGet();
+                    return false;
+                } else {
+                    try {
+                        notFull.await();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        rejectedCount.incrementAndGet();
+                        return false;
+                    }
+                }
+            }
+
+            if (closed) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+
+            int tail = (head + count) % tasks.length;
+            tasks[tail] = task;
+            enqueuedAtNanos[tail] = now;
+            count++;
+            if (count > maxQueueDepth.get()) {
+                maxQueueDepth.set(count);
+            }
+            submittedCount.incrementAndGet();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (droppedOldest) {
+            logger.warn(name + " full, dropped oldest task (dropped:" + droppedCount.get() + ")");
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            work();
+        } finally {
+            // also when a task threw an Error, blocked submitters would wait forever otherwise
+            int pending = markClosed();
+            if (pending > 0) {
+                logger.warn(name + " stopped, dropped pending tasks:" + pending);
+            }
+            logger.info(name + " stopped");
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Runnable task;
+            long enqueuedAt;
+            lock.lock();
+            try {
+                while (count == 0 && !closed) {
+                    try {
+                        notEmpty.await();
+                    } catch (InterruptedException ie) {
+                        // woken up to check closed
+                    }
+                }
+                if (closed) {
+                    break;
+                }
+
+                task = tasks[head];
+                enqueuedAt = enqueuedAtNanos[head];
+                tasks[head] = null;
+                head = (head + 1) % tasks.length;
+                count--;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            long latency = start - enqueuedAt;
+            totalLatencyNanos.addAndGet(latency);
+            updateMax(maxLatencyNanos, latency);
+            try {
+                task.run();
+            } catch (Exception e) {
+                failedCount.incrementAndGet();
+                logger.error(name + " task failed: " + e.toString());
+            } catch (Error e) {
+                failedCount.incrementAndGet();
+                logger.error(name + " task failed, stopping: " + e.toString());
+                throw e;
+            }
+            executedCount.incrementAndGet();
+            updateMax(maxRunNanos, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Reject further submits, drop pending tasks and wake everyone waiting
+     * @return number of pending tasks dropped
+     */
+    private int markClosed() {
+        int pending;
+        lock.lock();
+        try {
+            closed = true;
+            pending = count;
+            for (int i = 0; i < count; i++) {
+                tasks[(head + i) % tasks.length] = null;
+            }
+            head = 0;
+            count = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        droppedCount.addAndGet(pending);
+        return pending;
+    }
+
+    /**
+     * Stop the worker after its current task and wait for it, pending tasks are dropped
+     * @param timeoutMillis max time to wait for the current task
+     */
+    public void close(long timeoutMillis) {
+        int pending = markClosed();
+        if (pending > 0) {
+            logger.warn(name + " closed, dropped pending tasks:" + pending);
+        }
+
+        if (Thread.currentThread() != thread && thread.isAlive()) {
+            try {
+                thread.join(timeoutMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                logger.warn(name + " didn't stop in " + timeoutMillis + "ms");
+            }
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return tasks.length;
+    }
+
+    @Override
+    public String toString() {
+        long executed = executedCount.get();
+        return name + " " + policy
+            + " depth:" + getQueueDepth() + "/" + tasks.length + " (max:" + maxQueueDepth.get() + ")"
+            + " submitted:" + submittedCount.get()
+            + " executed:" + executed
+            + " failed:" + failedCount.get()
+            + " rejected:" + rejectedCount.get()
+            + " dropped:" + droppedCount.get()
+            + " latency(avg/max us):"
+            + (executed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.get() / executed))
+            + "/" + TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get())
+            + " max run us:" + TimeUnit.NANOSECONDS.toMicros(maxRunNanos.get());
+    }
+}
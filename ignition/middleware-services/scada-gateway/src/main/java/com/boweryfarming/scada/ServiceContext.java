@@ -5,6 +5,7 @@ import java.util.Map;
 
 import com.boweryfarming.scada.command.CommandService;
 import com.boweryfarming.scada.conveyor.BinConveyorService;
+import com.boweryfarming.scada.settings.BoweryScadaDeviceSettings;
 import com.boweryfarming.scada.simulator.SimulatorService;
 import com.boweryfarming.scada.tags.PublicTag;
 import com.boweryfarming.scada.tags.PublicTagManagerService;
@@ -21,9 +22,11 @@ public class ServiceContext {
     private final Logger logger = LoggerFactory.getLogger(BoweryScadaDevice.class);
 
     private final DeviceContext deviceContext;
+    private final BoweryScadaDeviceSettings settings;
     private final UaNodeContext nodeContext;
     private final UaNodeManager nodeManager;
     private final ManagedDevice managedDevice;
+    private final ScadaClock clock;
     private Map<String, AbstractScadaService> services = new HashMap<String, AbstractScadaService>();
 
     public static final String SIMULATOR_SERVICE = "com.boweryfarming.service.simulator";
@@ -41,16 +44,22 @@ public class ServiceContext {
 
     public void shutdown() {
         stopServices();
+        clock.close();
     }
 
     public ServiceContext(ManagedDevice managedDevice,
             DeviceContext deviceContext,
+            BoweryScadaDeviceSettings settings,
             UaNodeContext nodeContext,
             UaNodeManager nodeManager) {
         this.deviceContext = deviceContext;
+        this.settings = settings;
         this.managedDevice = managedDevice;
         this.nodeContext = nodeContext;
         this.nodeManager = nodeManager;
+        this.clock = settings.isVirtualClock()
+            ? new VirtualClock(settings.getVirtualClockSettleMs(), logger)
+            : new SystemClock();
 
         // TODO: start command service and simulator services only for test environment
         services.put(COMMAND_SERVICE, new CommandService(this));
@@ -118,6 +127,10 @@ public class ServiceContext {
         return deviceContext;
     }
 
+    public BoweryScadaDeviceSettings getSettings() {
+        return settings;
+    }
+
     public ManagedDevice getManagedDevice() {
         return managedDevice;
     }
@@ -130,6 +143,11 @@ public class ServiceContext {
         return nodeContext;
     }
 
+    /** Time source of the conveyor and simulator services */
+    public ScadaClock getClock() {
+        return clock;
+    }
+
     public GatewayContext getGatewayContext() {
         return deviceContext.getGatewayContext();
     }
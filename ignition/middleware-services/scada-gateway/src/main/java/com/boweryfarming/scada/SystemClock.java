@@ -0,0 +1,58 @@
+package com.boweryfarming.scada;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Wall clock, schedulers are plain scheduled thread pools */
+public class SystemClock extends ScadaClock {
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void sleep(long duration, TimeUnit unit) throws InterruptedException {
+        unit.sleep(duration);
+    }
+
+    @Override
+    public ScadaScheduler newScheduler(String name, int threads) {
+        AtomicInteger count = new AtomicInteger(0);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, threads == 1 ? name : name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+
+        return new ScadaScheduler() {
+            @Override
+            public <T> ScheduledFuture<T> schedule(Callable<T> task, long delay, TimeUnit unit) {
+                return executor.schedule(task, delay, unit);
+            }
+
+            @Override
+            public void shutdownNow() {
+                executor.shutdownNow();
+            }
+        };
+    }
+
+    @Override
+    public boolean isVirtual() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "wall clock";
+    }
+}
@@ -0,0 +1,358 @@
+package com.boweryfarming.scada;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+
+/**
+ * Clock for accelerated soak tests, time only moves when the services are idle.
+ *
+ * Pending tasks of all schedulers and sleeps wait in one timer queue in due order. The driver
+ * thread hands due timers to their scheduler; once none of them is running, no {@link Hold} is
+ * held and nothing has changed for the settle period, time jumps to the next timer.
+ *
+ * Work outside the schedulers must hold the clock while it's in progress, e.g. a scan from the
+ * simulator writing the QR code until the gateway is notified of it, and the gateway from that
+ * notification until its routing decision is written. Otherwise the clock moves on while Ignition
+ * polls the tag, and transit times and routing deadlines pass before the bin was even seen. The
+ * settle period only covers short hand-offs between threads. A hold that isn't released within
+ * HOLD_TIMEOUT_MS of real time is dropped with a warning, so a lost tag change can't stop the clock.
+ *
+ * Work running on scheduler threads takes no virtual time, so scheduler tasks must not sleep on
+ * the clock; slow database and OPC calls only slow the test down. Times start at the wall clock
+ * when the clock is created.
+ */
+public class VirtualClock extends ScadaClock {
+    static final long HOLD_TIMEOUT_MS = 10000;
+
+    private final long settleNanos;
+    private final Logger logger;
+    private final long startNanos;
+    private final long startMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** signalled when a timer is added, cancelled or finishes running */
+    private final Condition changed = lock.newCondition();
+    // guarded by lock
+    private final PriorityQueue<Timer<?>> timers = new PriorityQueue<Timer<?>>();
+    private long sequence = 0;
+    private int running = 0;
+    private final Set<VirtualHold> holds = new LinkedHashSet<VirtualHold>();
+    private boolean closed = false;
+    private volatile long nowNanos;
+    private final Thread driver;
+    private final ThreadLocal<Boolean> onScheduler = ThreadLocal.withInitial(() -> false);
+
+    private volatile long advanceCount = 0;
+    private volatile long firedCount = 0;
+    private volatile long holdCount = 0;
+    private volatile long expiredHoldCount = 0;
+
+    /** @param settleMs real time the services must be idle before time jumps ahead */
+    public VirtualClock(long settleMs, Logger logger) {
+        if (settleMs < 0) {
+            throw new IllegalArgumentException("Negative settle time:" + settleMs);
+        }
+        this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMs);
+        this.logger = logger;
+        this.startNanos = System.nanoTime();
+        this.startMillis = System.currentTimeMillis();
+        this.nowNanos = startNanos;
+        this.driver = new Thread(this::drive, "VirtualClock");
+        this.driver.setDaemon(true);
+        this.driver.start();
+        logger.info("Started " + toString());
+    }
+
+    @Override
+    public long nanoTime() {
+        return nowNanos;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return startMillis + TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos);
+    }
+
+    @Override
+    public void sleep(long duration, TimeUnit unit) throws InterruptedException {
+        if (onScheduler.get()) {
+            throw new IllegalStateException("Sleep on a virtual clock scheduler thread would stop the clock");
+        }
+        if (duration <= 0) {
+            return;
+        }
+        CountDownLatch woken = new CountDownLatch(1);
+        // counting down is quick, the driver does it itself
+        Timer<?> timer = add(Executors.callable(woken::countDown), unit.toNanos(duration), null);
+        try {
+            woken.await();
+        } finally {
+            timer.cancel(false);
+        }
+    }
+
+    @Override
+    public ScadaScheduler newScheduler(String name, int threads) {
+        AtomicInteger count = new AtomicInteger(0);
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, threads == 1 ? name : name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        return new ScadaScheduler() {
+            @Override
+            public <T> ScheduledFuture<T> schedule(Callable<T> task, long delay, TimeUnit unit) {
+                return add(task, unit.toNanos(delay), workers);
+            }
+
+            @Override
+            public void shutdownNow() {
+                workers.shutdownNow();
+            }
+        };
+    }
+
+    @Override
+    public Hold hold(String reason) {
+        VirtualHold hold = new VirtualHold(reason, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HOLD_TIMEOUT_MS));
+        lock.lock();
+        try {
+            holds.add(hold);
+            holdCount++;
+        } finally {
+            lock.unlock();
+        }
+        return hold;
+    }
+
+    /**
+     * Drop holds held longer than HOLD_TIMEOUT_MS, with the lock held
+     * @return real nanos until the next hold times out
+     */
+    private long expireHolds() {
+        long now = System.nanoTime();
+        long untilNext = Long.MAX_VALUE;
+        for (Iterator<VirtualHold> it = holds.iterator(); it.hasNext(); ) {
+            VirtualHold hold = it.next();
+            if (hold.expiresAtNanos - now <= 0) {
+                it.remove();
+                expiredHoldCount++;
+                logger.warn("Virtual clock hold not released within " + HOLD_TIMEOUT_MS + "ms: " + hold.reason);
+            } else {
+                untilNext = Math.min(untilNext, hold.expiresAtNanos - now);
+            }
+        }
+        return untilNext;
+    }
+
+    private <T> Timer<T> add(Callable<T> task, long delayNanos, ExecutorService workers) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Virtual clock is closed");
+            }
+            Timer<T> timer = new Timer<T>(task, nowNanos + Math.max(0, delayNanos), sequence++, workers);
+            timers.add(timer);
+            changed.signalAll();
+            return timer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drive() {
+        lock.lock();
+        try {
+            while (!closed) {
+                Timer<?> next = timers.peek();
+                if (next == null || next.dueNanos > nowNanos) {
+                    // time only moves when nothing is in progress
+                    long holdNanos = expireHolds();
+                    if (next == null || running > 0 || !holds.isEmpty()) {
+                        if (holdNanos == Long.MAX_VALUE) {
+                            changed.await();
+                        } else {
+                            changed.awaitNanos(holdNanos);
+                        }
+                        continue;
+                    }
+
+                    // any change restarts the settle period, the next timer may have changed too
+                    if (changed.awaitNanos(settleNanos) > 0 || timers.peek() != next || running > 0
+                            || !holds.isEmpty()) {
+                        continue;
+                    }
+                    nowNanos = next.dueNanos;
+                    advanceCount++;
+                }
+
+                timers.poll();
+                if (next.isCancelled()) {
+                    continue;
+                }
+                firedCount++;
+                if (next.workers == null) {
+                    next.run();
+                    continue;
+                }
+                running++;
+                try {
+                    next.workers.execute(() -> runOnScheduler(next));
+                } catch (RuntimeException e) {
+                    // scheduler was shut down
+                    running--;
+                    next.cancel(false);
+                }
+            }
+        } catch (InterruptedException ie) {
+            // closed
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runOnScheduler(Timer<?> timer) {
+        onScheduler.set(true);
+        try {
+            timer.run();
+        } finally {
+            onScheduler.set(false);
+            lock.lock();
+            try {
+                running--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean isVirtual() {
+        return true;
+    }
+
+    /** Stop the clock, pending timers and sleeps never fire */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        driver.interrupt();
+        logger.info("Stopped " + toString());
+    }
+
+    @Override
+    public String toString() {
+        int pending;
+        int held;
+        lock.lock();
+        try {
+            pending = timers.size();
+            held = holds.size();
+        } finally {
+            lock.unlock();
+        }
+        long realMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        long virtualMs = TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos);
+        return "virtual clock settle ms:" + TimeUnit.NANOSECONDS.toMillis(settleNanos)
+            + " virtual s:" + virtualMs / 1000
+            + " real s:" + realMs / 1000
+            + " speedup:" + (realMs == 0 ? 0 : virtualMs / realMs) + "x"
+            + " advances:" + advanceCount
+            + " fired:" + firedCount
+            + " pending:" + pending
+            + " holds:" + holdCount
+            + " held:" + held
+            + " expired holds:" + expiredHoldCount;
+    }
+
+    private class VirtualHold implements Hold {
+        final String reason;
+        final long expiresAtNanos;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        VirtualHold(String reason, long expiresAtNanos) {
+            this.reason = reason;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        @Override
+        public void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            lock.lock();
+            try {
+                holds.remove(this);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private class Timer<T> extends FutureTask<T> implements ScheduledFuture<T> {
+        final long dueNanos;
+        final long sequence;
+        /** null to run on the driver */
+        final ExecutorService workers;
+
+        Timer(Callable<T> task, long dueNanos, long sequence, ExecutorService workers) {
+            super(task);
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+            this.workers = workers;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - nowNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other instanceof Timer) {
+                Timer<?> timer = (Timer<?>) other;
+                int result = Long.compare(dueNanos, timer.dueNanos);
+                return result != 0 ? result : Long.compare(sequence, timer.sequence);
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                lock.lock();
+                try {
+                    timers.remove(this);
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return cancelled;
+        }
+    }
+}
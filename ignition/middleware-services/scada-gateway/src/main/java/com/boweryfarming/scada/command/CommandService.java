@@ -1,12 +1,15 @@
 package com.boweryfarming.scada.command;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -14,7 +17,11 @@ import java.util.concurrent.Executors;
 
 import com.boweryfarming.scada.AbstractScadaService;
 import com.boweryfarming.scada.ServiceContext;
+import com.boweryfarming.scada.conveyor.BinConveyorService;
 import com.boweryfarming.scada.simulator.SimulatorService;
+import com.boweryfarming.scada.tags.PublicTagManagerService;
+import com.boweryfarming.scada.tags.TagFilter;
+import com.boweryfarming.scada.tags.TagTrace;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -145,6 +152,7 @@ public class CommandService extends AbstractScadaService {
         static final String SIDE = "side";
         static final String LABEL = "label";
         static final String WEIGHT = "weight";
+        static final String LINE = "line";
 
         public ScanBinLabelCommand() {
             super("Add new bin label to simulator");
@@ -156,6 +164,8 @@ public class CommandService extends AbstractScadaService {
                     OptionBuilder.withLongOpt(LABEL).withDescription("bin label").isRequired().hasArg().create());
             options.addOption(OptionBuilder.withLongOpt(WEIGHT).withDescription("bin content weight").isRequired()
                     .hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(LINE)
+                    .withDescription("simulated conveyor line, the first line by default").hasArg().create());
         }
 
         @Override
@@ -169,7 +179,11 @@ public class CommandService extends AbstractScadaService {
 
                     SimulatorService simulator = (SimulatorService) context.getService(
                             ServiceContext.SIMULATOR_SERVICE);
-                    simulator.scanBinLabel(farmId, side, label, weight);
+                    if (cli.hasOption(LINE)) {
+                        simulator.scanBinLabel(Integer.parseInt(cli.getOptionValue(LINE)), farmId, side, label, weight);
+                    } else {
+                        simulator.scanBinLabel(farmId, side, label, weight);
+                    }
                     return new ScadaCommandResult(0, "success");
                 }
             };
@@ -194,11 +208,388 @@ public class CommandService extends AbstractScadaService {
         }
     }
 
+    class SimulatorConveyorCommand extends ScadaCommand {
+        static final String TRANSIT_MS = "transit-ms";
+        static final String SPACING_MS = "spacing-ms";
+
+        public SimulatorConveyorCommand() {
+            super("Show or set the simulated conveyor timing");
+
+            options.addOption(OptionBuilder.withLongOpt(TRANSIT_MS)
+                    .withDescription("time from the scanner to the diverter").hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(SPACING_MS)
+                    .withDescription("min time between two scans").hasArg().create());
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    SimulatorService simulator = (SimulatorService) context.getService(
+                            ServiceContext.SIMULATOR_SERVICE);
+                    if (cli.hasOption(TRANSIT_MS) || cli.hasOption(SPACING_MS)) {
+                        long transitMs = cli.hasOption(TRANSIT_MS)
+                            ? Long.parseLong(cli.getOptionValue(TRANSIT_MS)) : simulator.getTransitMs();
+                        long spacingMs = cli.hasOption(SPACING_MS)
+                            ? Long.parseLong(cli.getOptionValue(SPACING_MS)) : simulator.getSpacingMs();
+                        simulator.setConveyorTiming(transitMs, spacingMs);
+                    }
+                    return new ScadaCommandResult(0, simulator.getConveyorTiming());
+                }
+            };
+        }
+    }
+
+    class LoadStartCommand extends ScadaCommand {
+        static final String LINES = "lines";
+        static final String RATE = "rate";
+        static final String DURATION = "duration";
+        static final String ARRIVAL = "arrival";
+        static final String ROUTED = "routed";
+        static final long DEFAULT_DURATION_SECONDS = 60;
+        static final double DEFAULT_ROUTED_RATIO = 0.9;
+        /** routed labels sampled from the routing entries */
+        static final int MAX_ROUTED_LABELS = 1000;
+
+        public LoadStartCommand() {
+            super("Generate bins on the simulated lines and measure throughput and routing latency");
+
+            options.addOption(OptionBuilder.withLongOpt(LINES)
+                    .withDescription("comma separated simulated lines, all lines by default").hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(RATE)
+                    .withDescription("target bins per second over all lines").isRequired().hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(DURATION)
+                    .withDescription("run seconds, " + DEFAULT_DURATION_SECONDS + " by default").hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(ARRIVAL)
+                    .withDescription("constant, poisson or bursty, constant by default").hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(ROUTED)
+                    .withDescription("share of bins with a routing entry 0-1, " + DEFAULT_ROUTED_RATIO + " by default")
+                    .hasArg().create());
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    List<Integer> lineIds = new ArrayList<Integer>();
+                    if (cli.hasOption(LINES)) {
+                        for (String item : cli.getOptionValue(LINES).split(",")) {
+                            lineIds.add(Integer.parseInt(item.trim()));
+                        }
+                    }
+                    double rate = Double.parseDouble(cli.getOptionValue(RATE));
+                    long seconds = cli.hasOption(DURATION)
+                        ? Long.parseLong(cli.getOptionValue(DURATION)) : DEFAULT_DURATION_SECONDS;
+                    String arrival = cli.hasOption(ARRIVAL) ? cli.getOptionValue(ARRIVAL) : "constant";
+                    double routed = cli.hasOption(ROUTED)
+                        ? Double.parseDouble(cli.getOptionValue(ROUTED)) : DEFAULT_ROUTED_RATIO;
+
+                    BinConveyorService conveyor = (BinConveyorService) context.getService(
+                            ServiceContext.BINCONVEYANCE_SERVICE);
+                    SimulatorService simulator = (SimulatorService) context.getService(
+                            ServiceContext.SIMULATOR_SERVICE);
+                    return new ScadaCommandResult(0, simulator.startLoad(lineIds, rate, seconds * 1000, arrival,
+                                routed, conveyor.getRoutedLabels(MAX_ROUTED_LABELS)));
+                }
+            };
+        }
+    }
+
+    class LoadStopCommand extends ScadaCommand {
+        public LoadStopCommand() {
+            super("Stop generating bins on the simulated lines");
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    SimulatorService simulator = (SimulatorService) context.getService(
+                            ServiceContext.SIMULATOR_SERVICE);
+                    simulator.stopLoad();
+                    return new ScadaCommandResult(0, simulator.getLoadReport());
+                }
+            };
+        }
+    }
+
+    class LoadReportCommand extends ScadaCommand {
+        public LoadReportCommand() {
+            super("Show throughput and routing latency of the current or last load run");
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    SimulatorService simulator = (SimulatorService) context.getService(
+                            ServiceContext.SIMULATOR_SERVICE);
+                    return new ScadaCommandResult(0, simulator.getLoadReport());
+                }
+            };
+        }
+    }
+
+    File traceFile(String name) {
+        return TagTrace.traceFile(context.getGatewayContext().getSystemManager().getDataDir(), name);
+    }
+
+    class TraceRecordCommand extends ScadaCommand {
+        static final String LINE = "line";
+        static final String NAME = "name";
+
+        public TraceRecordCommand() {
+            super("Record tag changes and instruction writes of a line into a trace file");
+
+            options.addOption(OptionBuilder.withLongOpt(LINE)
+                    .withDescription("conveyor line").isRequired().hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(NAME)
+                    .withDescription("trace name, line{n}-{time} by default").hasArg().create());
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() throws IOException {
+                    int lineId = Integer.parseInt(cli.getOptionValue(LINE));
+                    String name = cli.hasOption(NAME)
+                        ? cli.getOptionValue(NAME) : "line" + lineId + "-" + System.currentTimeMillis();
+
+                    PublicTagManagerService tagManager = (PublicTagManagerService) context.getService(
+                            ServiceContext.PUBTAG_MANAGER_SERVICE);
+                    return new ScadaCommandResult(0, tagManager.startTraceRecording(lineId, traceFile(name)));
+                }
+            };
+        }
+    }
+
+    class TraceRecordStopCommand extends ScadaCommand {
+        static final String LINE = "line";
+
+        public TraceRecordStopCommand() {
+            super("Stop recording a line and close its trace file");
+
+            options.addOption(OptionBuilder.withLongOpt(LINE)
+                    .withDescription("conveyor line").isRequired().hasArg().create());
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    int lineId = Integer.parseInt(cli.getOptionValue(LINE));
+                    PublicTagManagerService tagManager = (PublicTagManagerService) context.getService(
+                            ServiceContext.PUBTAG_MANAGER_SERVICE);
+                    return new ScadaCommandResult(0, tagManager.stopTraceRecording(lineId));
+                }
+            };
+        }
+    }
+
+    class TraceReplayCommand extends ScadaCommand {
+        static final String NAME = "name";
+        static final String LINE = "line";
+        static final String SPEED = "speed";
+
+        public TraceReplayCommand() {
+            super("Replay the device tag changes of a trace into the simulator");
+
+            options.addOption(OptionBuilder.withLongOpt(NAME)
+                    .withDescription("trace name").isRequired().hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(LINE)
+                    .withDescription("simulated line, the recorded line by default").hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(SPEED)
+                    .withDescription("1 for real time, N for N times faster, 0 for as fast as possible, 1 by default")
+                    .hasArg().create());
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() throws IOException {
+                    int lineId = cli.hasOption(LINE) ? Integer.parseInt(cli.getOptionValue(LINE)) : 0;
+                    double speed = cli.hasOption(SPEED) ? Double.parseDouble(cli.getOptionValue(SPEED)) : 1;
+
+                    SimulatorService simulator = (SimulatorService) context.getService(
+                            ServiceContext.SIMULATOR_SERVICE);
+                    return new ScadaCommandResult(0,
+                            simulator.startReplay(traceFile(cli.getOptionValue(NAME)), lineId, speed));
+                }
+            };
+        }
+    }
+
+    class TraceReplayStopCommand extends ScadaCommand {
+        public TraceReplayStopCommand() {
+            super("Stop the trace replay");
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    SimulatorService simulator = (SimulatorService) context.getService(
+                            ServiceContext.SIMULATOR_SERVICE);
+                    simulator.stopReplay();
+                    return new ScadaCommandResult(0, simulator.getReplayReport());
+                }
+            };
+        }
+    }
+
+    class TraceSummaryCommand extends ScadaCommand {
+        static final String NAME = "name";
+
+        public TraceSummaryCommand() {
+            super("Show event counts, routing decisions and latency of a trace, or the replay progress");
+
+            options.addOption(OptionBuilder.withLongOpt(NAME)
+                    .withDescription("trace name, the replay progress if omitted").hasArg().create());
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() throws IOException {
+                    if (cli.hasOption(NAME)) {
+                        return new ScadaCommandResult(0, TagTrace.summary(traceFile(cli.getOptionValue(NAME))));
+                    }
+
+                    SimulatorService simulator = (SimulatorService) context.getService(
+                            ServiceContext.SIMULATOR_SERVICE);
+                    return new ScadaCommandResult(0, simulator.getReplayReport());
+                }
+            };
+        }
+    }
+
+    class ConveyorStatsCommand extends ScadaCommand {
+        public ConveyorStatsCommand() {
+            super("Show bin conveyor runtime statistics");
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    BinConveyorService conveyor = (BinConveyorService) context.getService(
+                            ServiceContext.BINCONVEYANCE_SERVICE);
+                    return new ScadaCommandResult(0, conveyor.getStats());
+                }
+            };
+        }
+    }
+
+    class TagStatsCommand extends ScadaCommand {
+        public TagStatsCommand() {
+            super("Show public tag runtime statistics");
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    PublicTagManagerService tagManager = (PublicTagManagerService) context.getService(
+                            ServiceContext.PUBTAG_MANAGER_SERVICE);
+                    return new ScadaCommandResult(0, tagManager.getStats());
+                }
+            };
+        }
+    }
+
+    class TagHistoryCommand extends ScadaCommand {
+        static final String PATH = "path";
+        static final String SECONDS = "seconds";
+        static final long DEFAULT_SECONDS = 60;
+
+        public TagHistoryCommand() {
+            super("Show recent values of public tags");
+
+            options.addOption(OptionBuilder.withLongOpt(PATH)
+                    .withDescription("tag path, * matches one path element e.g., [Public]Conveyance/Bin/1/*")
+                    .isRequired().hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(SECONDS)
+                    .withDescription("last seconds, " + DEFAULT_SECONDS + " by default").hasArg().create());
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    String path = cli.getOptionValue(PATH);
+                    long seconds = cli.hasOption(SECONDS)
+                        ? Long.parseLong(cli.getOptionValue(SECONDS)) : DEFAULT_SECONDS;
+
+                    PublicTagManagerService tagManager = (PublicTagManagerService) context.getService(
+                            ServiceContext.PUBTAG_MANAGER_SERVICE);
+                    return new ScadaCommandResult(0, tagManager.getHistory(path, seconds));
+                }
+            };
+        }
+    }
+
+    class TagFilterCommand extends ScadaCommand {
+        static final String PATH = "path";
+        static final String FILTER = "filter";
+        static final String REMOVE = "remove";
+
+        public TagFilterCommand() {
+            super("Filter the notifications of a public tag until the gateway restarts, see the TagFilters setting");
+
+            options.addOption(OptionBuilder.withLongOpt(PATH)
+                    .withDescription("tag path e.g., [Public]Conveyance/Bin/1/Weigh/Weight")
+                    .isRequired().hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(FILTER)
+                    .withDescription("deadband:N,percent:N,interval:MS,coalesce in any combination")
+                    .hasArg().create());
+            options.addOption(OptionBuilder.withLongOpt(REMOVE)
+                    .withDescription("remove the filter of the tag").create());
+        }
+
+        @Override
+        public AbstractScadaCommandCallable getCallable(CommandLine cli) {
+            return new AbstractScadaCommandCallable(cli) {
+                public ScadaCommandResult call() {
+                    String path = cli.getOptionValue(PATH);
+                    PublicTagManagerService tagManager = (PublicTagManagerService) context.getService(
+                            ServiceContext.PUBTAG_MANAGER_SERVICE);
+                    try {
+                        if (cli.hasOption(REMOVE)) {
+                            tagManager.removeTagFilter(path);
+                            return new ScadaCommandResult(0, "removed filter of " + path);
+                        }
+                        if (!cli.hasOption(FILTER)) {
+                            return new ScadaCommandResult(-1, "either --filter or --remove is required");
+                        }
+                        TagFilter filter = TagFilter.parse(cli.getOptionValue(FILTER));
+                        tagManager.setTagFilter(path, filter);
+                        return new ScadaCommandResult(0, "filter " + path + " " + filter.toString());
+                    } catch (RuntimeException e) {
+                        return new ScadaCommandResult(-1, e.getMessage());
+                    }
+                }
+            };
+        }
+    }
+
     Map<String, ScadaCommand> commands = new HashMap<String, ScadaCommand>();
 
     void initCommandOptions() {
         commands.put("scan_bin_label", new ScanBinLabelCommand());
         commands.put("clear_bin_routing", new ClearBinRoutingCommand());
+        commands.put("conveyor_stats", new ConveyorStatsCommand());
+        commands.put("simulator_conveyor", new SimulatorConveyorCommand());
+        commands.put("load_start", new LoadStartCommand());
+        commands.put("load_stop", new LoadStopCommand());
+        commands.put("load_report", new LoadReportCommand());
+        commands.put("trace_record", new TraceRecordCommand());
+        commands.put("trace_record_stop", new TraceRecordStopCommand());
+        commands.put("trace_replay", new TraceReplayCommand());
+        commands.put("trace_replay_stop", new TraceReplayStopCommand());
+        commands.put("trace_summary", new TraceSummaryCommand());
+        commands.put("tag_stats", new TagStatsCommand());
+        commands.put("tag_history", new TagHistoryCommand());
+        commands.put("tag_filter", new TagFilterCommand());
     }
 
     class ScadaCommandFactory implements CommandFactory, Runnable {
@@ -1,20 +1,35 @@
 package com.boweryfarming.scada.conveyor;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.Duration;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import com.boweryfarming.scada.AbstractScadaService;
+import com.boweryfarming.scada.ScadaClock;
+import com.boweryfarming.scada.ScadaScheduler;
 import com.boweryfarming.scada.ServiceContext;
-import com.boweryfarming.scada.tags.PublicTag;
+import com.boweryfarming.scada.db.ConnectionPool;
+import com.boweryfarming.scada.db.DatabaseUnavailableException;
 import com.boweryfarming.scada.tags.PublicTagEventListener;
+import com.boweryfarming.scada.tags.PublicTagGroup;
+import com.boweryfarming.scada.tags.PublicTagGroupListener;
 import com.boweryfarming.scada.tags.PublicTagManagerService;
+import com.boweryfarming.scada.tags.PublicTagUtil;
+import com.boweryfarming.scada.tags.TagWriteBatch;
 
+import net.jodah.failsafe.CircuitBreaker;
 import net.jodah.failsafe.Failsafe;
 import net.jodah.failsafe.RetryPolicy;
 
@@ -22,202 +37,396 @@ public class BinConveyorService extends AbstractScadaService {
     final PublicTagManagerService publicTagManagerService;
 
     // TODO: read this database configs from Ignition gateway
+    static final String DB_DRIVER = "org.postgresql.Driver";
     static final String DB_URL = "jdbc:postgresql://ignition-db:5432/ignition_dev";
     static final String USER = "ignition_dev";
     static final String PASSWD = "ignition_dev";
-    static final String TBL_ROUTING_ENTRIES = "bin_conveyance_routing_entries";
-    static final String TBL_ROUTING_LOGS = "bin_conveyance_farm_2_prototype_cold_pack_weigh_routing_logs";
+    static final int DB_POOL_SIZE = 4;
+    static final long DB_ACQUIRE_TIMEOUT_MS = 1000;
+    static final int ROUTING_LOG_QUEUE_SIZE = 10000;
+    static final int ROUTING_LOG_BATCH_SIZE = 100;
+    static final long ROUTING_LOG_BATCH_AGE_MS = 500;
+    static final long ROUTING_LOG_DRAIN_TIMEOUT_MS = 5000;
+    static final long ROUTING_CACHE_NEGATIVE_TTL_MS = 2000;
+    static final long ROUTING_CACHE_MAX_TTL_MS = 10 * 60 * 1000;
+    static final int RETRY_SCHEDULER_THREADS = DB_POOL_SIZE;
+    static final long RETRY_DELAY_MS = 200;
+    static final long RETRY_MAX_DURATION_MS = 3000;
+    static final int DB_BREAKER_FAILURE_THRESHOLD = 3;
+    static final long DB_BREAKER_DELAY_MS = 5000;
+    /** Routing entry snapshot for warm start, relative to the gateway data dir */
+    static final String ROUTING_SNAPSHOT_PATH = "bowery/routing_entries.snapshot";
+    /** Routing log spool segments, relative to the gateway data dir */
+    static final String ROUTING_LOG_SPOOL_PATH = "bowery/routing_log_spool";
+    static final int ROUTING_LOG_SPOOL_SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int ROUTING_LOG_SPOOL_MAX_SEGMENTS = 256;
+    static final long ROUTING_LOG_SPOOL_SYNC_MS = 50;
+
+    static final CompletableFuture<Void> NOTHING_WRITTEN = CompletableFuture.completedFuture(null);
+
+    final ConnectionPool pool;
+    final RoutingRepository routingRepository;
+    final RoutingLogSpool routingLogSpool;
+    final RoutingLogWriter routingLogWriter;
+    final RoutingEntryCache routingEntryCache;
+    final DeadlineStats deadlineStats = new DeadlineStats();
+    final CircuitBreaker<Object> databaseBreaker;
+    final RetryPolicy<Object> routingRetryPolicy;
+    /** scan times, deadlines and retry delays */
+    final ScadaClock clock;
+    /** runs lookups and retries so they never hold a tag notification thread */
+    final ScadaScheduler retryScheduler;
+    /** fires routing deadlines, kept apart from retryScheduler so busy lookups can't delay it */
+    final ScadaScheduler deadlineTimer;
+    final Map<Integer, ConveyorLine> lines = new LinkedHashMap<Integer, ConveyorLine>();
 
     Map<String, PublicTagEventListener> eventListeners = new HashMap<String, PublicTagEventListener>();
+    Map<PublicTagGroup, PublicTagGroupListener> groupListeners = new HashMap<PublicTagGroup, PublicTagGroupListener>();
 
     public BinConveyorService (ServiceContext context) {
         super(context);
         this.publicTagManagerService =
             (PublicTagManagerService) context.getService(ServiceContext.PUBTAG_MANAGER_SERVICE);
+        this.clock = context.getClock();
+        this.retryScheduler = clock.newScheduler("ConveyorRetry", RETRY_SCHEDULER_THREADS);
+        this.deadlineTimer = clock.newScheduler("ConveyorDeadline", 1);
+        this.pool = new ConnectionPool(DB_URL, USER, PASSWD, DB_POOL_SIZE, DB_ACQUIRE_TIMEOUT_MS);
+        this.databaseBreaker = new CircuitBreaker<Object>()
+            .withFailureThreshold(DB_BREAKER_FAILURE_THRESHOLD)
+            .withSuccessThreshold(1)
+            .withDelay(Duration.ofMillis(DB_BREAKER_DELAY_MS))
+            .onOpen(() -> logger.error("Database circuit breaker opened, failing fast for "
+                        + DB_BREAKER_DELAY_MS + "ms"))
+            .onHalfOpen(() -> logger.info("Database circuit breaker half-open, probing database"))
+            .onClose(() -> logger.info("Database circuit breaker closed"));
+        // no routing entry is retried in case it shows up, nothing else will change within the window
+        this.routingRetryPolicy = new RetryPolicy<Object>()
+            .abortOn(IllegalArgumentException.class)
+            .abortOn(IllegalStateException.class)
+            .handle(RuntimeException.class)
+            .withDelay(Duration.ofMillis(RETRY_DELAY_MS))
+            .withMaxDuration(Duration.ofMillis(RETRY_MAX_DURATION_MS));
+        this.routingRepository = new RoutingRepository(pool, databaseBreaker);
+        File dataDir = context.getGatewayContext().getSystemManager().getDataDir();
+        this.routingLogSpool = new RoutingLogSpool(new File(dataDir, ROUTING_LOG_SPOOL_PATH), logger,
+                ROUTING_LOG_SPOOL_SEGMENT_SIZE, ROUTING_LOG_SPOOL_MAX_SEGMENTS, ROUTING_LOG_SPOOL_SYNC_MS);
+        this.routingLogWriter = new RoutingLogWriter(routingRepository, routingLogSpool, clock, logger,
+                ROUTING_LOG_QUEUE_SIZE, ROUTING_LOG_BATCH_SIZE, ROUTING_LOG_BATCH_AGE_MS);
+        this.routingEntryCache = new RoutingEntryCache(routingRepository, clock, logger,
+                ROUTING_CACHE_NEGATIVE_TTL_MS, ROUTING_CACHE_MAX_TTL_MS,
+                new File(dataDir, ROUTING_SNAPSHOT_PATH));
     }
 
     @Override
     public void onStart() {
-        addEventListener("[Public]Conveyance/Bin/1/QRCode",
+        try {
+            // register driver with DriverManager, module class loader isn't visible to service loading
+            Class.forName(DB_DRIVER);
+        } catch (ClassNotFoundException e) {
+            logger.error("Failed to load database driver: " + e.getMessage());
+        }
+        try {
+            routingLogSpool.open();
+        } catch (IOException e) {
+            logger.error("Failed to open routing log spool, routing logs are kept in memory only: "
+                    + e.getMessage());
+        }
+        routingLogWriter.start();
+        routingEntryCache.start();
+
+        for (int lineId : context.getSettings().getConveyorLineIds()) {
+            ConveyorLine line = new ConveyorLine(lineId, context.getSettings().getRoutingDeadlineMs(lineId));
+            lines.put(lineId, line);
+            logger.info("Starting conveyor " + line.toString());
+            try {
+                line.resolveTags(publicTagManagerService);
+                addLineEventListeners(line);
+            } catch (RuntimeException e) {
+                logger.error("Failed to listen to line " + lineId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Events of the line are handed to its lane right away, the notification thread never waits */
+    private void addLineEventListeners(ConveyorLine line) {
+        addEventListener(line.tagPath(PublicTagUtil.QR_CODE),
                 new PublicTagEventListener() {
                     public void onValueChanged(String path, Object value) {
-                        String QRCode = (String) value;
-                        logger.info("New QR code: " + QRCode);
-
-                        RetryPolicy<Object> policy = new RetryPolicy<>()
-                            .abortOn(IllegalArgumentException.class)
-                            .abortOn(ClassNotFoundException.class)
-                            .handle(RuntimeException.class)
-                            .withDelay(Duration.ofMillis(200))
-                            .withMaxDuration(Duration.ofSeconds(3))
-                            .onSuccess(e -> logger.info("QRCodeUpdated(" + QRCode + ") "
-                                        + "succeeded " + e.getElapsedTime().toSeconds() + "s "
-                                        + "attempts:" + e.getAttemptCount()))
-                            .onAbort(e -> logger.error("Aborted.. QRCodeUpdated(" + QRCode + ") "
-                                        + e.getFailure().getMessage()))
-                            .onFailure(e -> logger.error("Failed.. QRCodeUpdated(" + QRCode + ") "
-                                        + e.getFailure().getMessage()))
-                            .onRetry(e -> logger.error("Retrying.. QRCodeUpdated(" + QRCode + ") "
-                                        + e.getLastFailure().getMessage()));
-
-                        Failsafe.with(policy).run(() -> QRCodeUpdated(QRCode));
+                        long scannedAt = clock.nanoTime();
+                        // a virtual clock must not move on before the lookup is scheduled
+                        ScadaClock.Hold hold = clock.hold("QR code line " + line.lineId);
+                        line.lane.execute(() -> {
+                            try {
+                                qrCodeUpdated(line, (String) value, scannedAt);
+                            } finally {
+                                hold.release();
+                            }
+                        });
                     }
                 });
 
-        addEventListener("[Public]Conveyance/Bin/1/ACC",
-                new PublicTagEventListener() {
-                    public void onValueChanged(String path, Object value) {
-                        Long acc = (Long) value;
-                        logger.info("ACC triggered: " + acc);
-
-                        RetryPolicy<Object> policy = new RetryPolicy<>()
-                            .abortOn(IllegalArgumentException.class)
-                            .abortOn(ClassNotFoundException.class)
-                            .handle(RuntimeException.class)
-                            .withDelay(Duration.ofMillis(200))
-                            .withMaxDuration(Duration.ofSeconds(3))
-                            .onSuccess(e -> logger.info("accTriggered(" + acc + ") "
-                                        + "succeeded " + e.getElapsedTime().toSeconds() + "s "
-                                        + "attempts:" + e.getAttemptCount()))
-                            .onAbort(e -> logger.error("Aborted.. accTriggered(" + acc+ ") "
-                                        + e.getFailure().getMessage()))
-                            .onFailure(e -> logger.error("Failed.. QRCodeUpdated(" + acc + ") "
-                                        + e.getFailure().getMessage()))
-                            .onRetry(e -> logger.error("Retrying.. accTriggered(" + acc + ") "
-                                        + e.getLastFailure().getMessage()));
-
-                        Failsafe.with(policy).run(() -> accTriggered(acc));
+        // everything the routing log needs, as it was when ACC changed
+        PublicTagGroup routingLogGroup = new PublicTagGroup("RoutingLog line " + line.lineId,
+                line.tagPath(PublicTagUtil.ACC))
+            .member(line.tagPath(PublicTagUtil.WEIGH_INFO))
+            .member(line.tagPath(PublicTagUtil.QR_CODE))
+            .member(line.tagPath(PublicTagUtil.DESTINATION))
+            .member(line.tagPath(PublicTagUtil.INSTRUCTION_DESTINATION_ID))
+            .member(line.tagPath(PublicTagUtil.RESULT))
+            .member(line.tagPath(PublicTagUtil.WEIGH_WEIGHT))
+            .member(line.tagPath(PublicTagUtil.WEIGH_DATETIME));
+        addGroupListener(routingLogGroup,
+                new PublicTagGroupListener() {
+                    public void onTriggered(PublicTagGroup.Snapshot snapshot) {
+                        line.lane.execute(() -> accTriggered(line, snapshot));
                     }
                 });
     }
 
+    private void qrCodeUpdated(ConveyorLine line, String QRCode, long scannedAt) {
+        long scan = line.scanSequence.incrementAndGet();
+        logger.info("New QR code line " + line.lineId + ": " + QRCode);
+
+        CompletableFuture<RoutingEntry> lookup = Failsafe.with(routingRetryPolicy)
+            .with(retryScheduler.failsafe())
+            .getAsync(ctx -> {
+                if (ctx.getAttemptCount() > 0) {
+                    logger.warn("Retrying.. QRCodeUpdated(" + QRCode + ") attempt:"
+                            + (ctx.getAttemptCount() + 1));
+                }
+                return resolveRoutingEntry(QRCode);
+            });
+        lookup.whenComplete((entry, failure) ->
+                logCompletion("QRCodeUpdated(" + QRCode + ")", scannedAt, failure));
+        routeWithinDeadline(line, scan, QRCode, lookup, scannedAt);
+    }
+
     private void addEventListener(String tagPath, PublicTagEventListener listener) {
         this.publicTagManagerService.addEventListener(tagPath, listener);
         this.eventListeners.put(tagPath, listener);
     }
 
+    private void addGroupListener(PublicTagGroup group, PublicTagGroupListener listener) {
+        this.publicTagManagerService.addGroupListener(group, listener);
+        this.groupListeners.put(group, listener);
+    }
+
     @Override
     public void onDestroy() {
         for (Map.Entry<String, PublicTagEventListener> entry : eventListeners.entrySet()) {
             this.publicTagManagerService.removeEventListener(entry.getKey(), entry.getValue());
         }
+        for (Map.Entry<PublicTagGroup, PublicTagGroupListener> entry : groupListeners.entrySet()) {
+            this.publicTagManagerService.removeGroupListener(entry.getKey(), entry.getValue());
+        }
+
+        deadlineTimer.shutdownNow();
+        retryScheduler.shutdownNow();
+        for (ConveyorLine line : lines.values()) {
+            line.close();
+        }
+        lines.clear();
+        routingEntryCache.close();
+        routingLogWriter.close(ROUTING_LOG_DRAIN_TIMEOUT_MS);
+        routingLogSpool.close();
+
+        logger.info("Closing database connections: " + pool.toString());
+        pool.close();
     }
 
-    private void QRCodeUpdated(String QRCode) throws ClassNotFoundException, IllegalArgumentException, RuntimeException {
-        Connection conn = null;
-        Statement stmt = null;
-        ResultSet rs = null;
-        try {
-            Class.forName("org.postgresql.Driver");
-            conn = DriverManager.getConnection(DB_URL, USER, PASSWD);
+    /**
+     * Write the routing instruction if it's resolved before the routing deadline, otherwise write
+     * "no instruction" when the deadline fires and let the lookup finish in the background for
+     * logging only. Whichever comes first decides, neither waits on the other. Decisions are
+     * written on the line's lane and dropped if a newer bin was scanned meanwhile. The clock is held
+     * from the decision until it's written, so a virtual clock doesn't move on meanwhile.
+     */
+    private void routeWithinDeadline(ConveyorLine line, long scan, String QRCode,
+            CompletableFuture<RoutingEntry> lookup, long scannedAtNanos) {
+        long deadlineNanos = scannedAtNanos + TimeUnit.MILLISECONDS.toNanos(line.routingDeadlineMs);
+        AtomicBoolean decided = new AtomicBoolean(false);
 
-            if (QRCode.length() == 0) {
-                throw new IllegalArgumentException("Reject empty QRCode");
-            }
-            StringBuilder sb = new StringBuilder();
-            sb.append(String.format("select * from %s ", TBL_ROUTING_ENTRIES));
-            sb.append(String.format("where %s.bin_label = %s ", TBL_ROUTING_ENTRIES, QRCode));
-            sb.append(String.format("order by %s.id desc limit 1;", TBL_ROUTING_ENTRIES));
-            String query = sb.toString();
-
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(query);
-            logger.info("query result:" + rs.toString());
-            if (rs.next() == false) {
-                throw new RuntimeException("No routing instruction:" + QRCode);
+        ScheduledFuture<?> deadline = deadlineTimer.schedule(() -> {
+            if (decided.compareAndSet(false, true)) {
+                deadlineStats.missed();
+                logger.warn("Routing deadline " + line.routingDeadlineMs + "ms missed line " + line.lineId
+                        + " QRCodeUpdated(" + QRCode + ")");
+                ScadaClock.Hold hold = clock.hold("deadline line " + line.lineId);
+                line.lane.execute(() -> {
+                    CompletableFuture<?> written = NOTHING_WRITTEN;
+                    try {
+                        if (isCurrentScan(line, scan)) {
+                            written = writeNoInstruction(line, QRCode);
+                        }
+                    } finally {
+                        releaseAfter(written, hold);
+                    }
+                });
             }
+        }, Math.max(0, deadlineNanos - clock.nanoTime()), TimeUnit.NANOSECONDS);
 
-            int id = rs.getInt("id");
-            String desiredDestination = rs.getString("desired_destination");
-            String validTill = rs.getString("valid_till");
-            logger.info("Routing instruction: "
-                    + " id:" + id
-                    + " desired_destination:" + desiredDestination
-                    + " valid_till:" + validTill);
-
-            PublicTag presentTag = context.getPublicTag("[Public]Conveyance/Bin/1/Instruction/Present");
-            PublicTag destinationTag = context.getPublicTag("[Public]Conveyance/Bin/1/Instruction/DesiredDestination");
-            PublicTag idTag = context.getPublicTag("[Public]Conveyance/Bin/1/Instruction/DestinationId");
-            presentTag.setValue(1);
-            destinationTag.setValue(desiredDestination);
-            idTag.setValue(id);
-        } catch (SQLException e) {
-            throw new RuntimeException("Failed to select from database:" + e.getMessage());
-        } finally {
-            if (conn != null) {
-                try { conn.close(); } catch (SQLException e) { /* ignore */ }
-            }
+        // taken on the thread completing the lookup, before its scheduler task ends
+        CompletableFuture<ScadaClock.Hold> decisionHold =
+            lookup.handle((entry, failure) -> clock.hold("routing decision line " + line.lineId));
+        lookup.whenCompleteAsync((entry, failure) -> {
+            ScadaClock.Hold hold = decisionHold.join();
+            CompletableFuture<?> written = NOTHING_WRITTEN;
+            try {
+                if (!decided.compareAndSet(false, true)) {
+                    deadlineStats.lateCompleted();
+                    long elapsed = TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - scannedAtNanos);
+                    logger.warn("Late QRCodeUpdated(" + QRCode + ") after " + elapsed + "ms: "
+                            + (failure == null ? entry.toString() : failure.getMessage()));
+                    return;
+                }
+                deadline.cancel(false);
 
-            if (stmt != null) {
-                try { stmt.close(); } catch (SQLException e) { /* ignore */ }
-            }
+                if (!isCurrentScan(line, scan)) {
+                    return;
+                }
 
-            if (rs != null) {
-                try { rs.close(); } catch (SQLException e) { /* ignore */ }
+                if (failure != null) {
+                    // no routing entry or lookup aborted, logged by logCompletion; still decided in time
+                    deadlineStats.met(deadlineNanos - clock.nanoTime());
+                    written = writeNoInstruction(line, QRCode);
+                    return;
+                }
+
+                deadlineStats.met(deadlineNanos - clock.nanoTime());
+                try {
+                    written = writeInstruction(line, QRCode, entry);
+                } catch (RuntimeException e) {
+                    logger.error("Failed to write instruction(" + QRCode + ") " + e.getMessage());
+                }
+            } finally {
+                releaseAfter(written, hold);
             }
+        }, line.lane);
+    }
+
+    /** Release the hold once the write is done, whatever its result */
+    private static void releaseAfter(CompletableFuture<?> written, ScadaClock.Hold hold) {
+        written.whenComplete((result, failure) -> hold.release());
+    }
+
+    private boolean isCurrentScan(ConveyorLine line, long scan) {
+        if (scan == line.scanSequence.get()) {
+            return true;
         }
+
+        line.supersededCount.incrementAndGet();
+        return false;
     }
 
-    private void accTriggered(Long acc) throws ClassNotFoundException, RuntimeException {
-        if (acc == 0) {
-            throw new IllegalArgumentException("Reject acc == 0");
+    private void logCompletion(String execution, long startNanos, Throwable failure) {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - startNanos);
+        if (failure == null) {
+            logger.info(execution + " succeeded " + elapsed + "ms");
+            return;
+        }
+
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+            ? failure.getCause() : failure;
+        if (cause instanceof IllegalArgumentException || cause instanceof IllegalStateException) {
+            logger.error("Aborted.. " + execution + " " + cause.getMessage());
+        } else {
+            logger.error("Failed.. " + execution + " after " + elapsed + "ms " + cause.getMessage());
         }
-        logger.info("ACC: " + acc);
-
-        StringBuilder sb = new StringBuilder();
-        String rawBinLabel = (String) context.getPublicTag("[Public]Conveyance/Bin/1/Weigh/Info").getValue();
-        String parsedBinLabel = (String) context.getPublicTag("[Public]Conveyance/Bin/1/QRCode").getValue();
-        String destination = (String) context.getPublicTag("[Public]Conveyance/Bin/1/Destination").getValue();
-        Long routingEntryId = (Long) context.getPublicTag("[Public]Conveyance/Bin/1/Instruction/DestinationId").getValue();
-        String reason =  (String) context.getPublicTag("[Public]Conveyance/Bin/1/Result").getValue();
-        Long weightGrams = (Long) context.getPublicTag("[Public]Conveyance/Bin/1/Weigh/Weight").getValue();
-        String deviceDataTime = (String) context.getPublicTag("[Public]Conveyance/Bin/1/Datetime").getValue();
-        String insertedAt = ""; // TODO: get insert time
-        String updatedAt = ""; // TODO: get update time
-        String writePrototypeDestination = destination;
-        String writePrototypeReason = reason;
-
-        sb.append(String.format("insert into %s (", TBL_ROUTING_LOGS));
-        sb.append("raw_bin_label, parsed_bin_label, destination, ");
-        sb.append("bin_conveyance_routing_entry_id, reason, weight_grams, ");
-        sb.append("device_datetime, inserted_at, updated_at, "); 
-        sb.append("write_prototype_destination, write_prototype_reason) ");
-        sb.append("values ( ");
-        sb.append(String.format("%s, %s, %s, ", rawBinLabel, parsedBinLabel, destination));
-        sb.append(String.format("%s, %s, %s, ", routingEntryId, reason, weightGrams));
-        sb.append(String.format("%s, %s, %s, ", deviceDataTime, insertedAt, updatedAt));
-        sb.append(String.format("%s, %s ", writePrototypeDestination, writePrototypeReason));
-        sb.append(");");
-
-        String query = sb.toString();
-
-        Connection conn = null;
-        Statement stmt = null;
-        ResultSet rs = null;
+    }
+
+    private RoutingEntry resolveRoutingEntry(String QRCode) throws IllegalArgumentException, RuntimeException {
+        if (QRCode.length() == 0) {
+            throw new IllegalArgumentException("Reject empty QRCode");
+        }
+
+        RoutingEntry entry;
         try {
-            Class.forName("org.postgresql.Driver");
-            conn = DriverManager.getConnection(DB_URL, USER, PASSWD);
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(query);
-            logger.info("query result:" + rs.toString());
-            if (rs.next() == false) {
-                return;
-            }
+            entry = routingEntryCache.lookup(QRCode)
+                .orElseThrow(() -> new RuntimeException("No routing instruction:" + QRCode));
+        } catch (DatabaseUnavailableException e) {
+            // no point in retrying while the breaker is open
+            throw new IllegalStateException("Database unavailable:" + e.getMessage());
         } catch (SQLException e) {
             throw new RuntimeException("Failed to select from database:" + e.getMessage());
-        } finally {
-            if (conn != null) {
-                try { conn.close(); } catch (SQLException e) { /* ignore */ }
-            }
+        }
+        logger.info("Routing instruction: " + entry.toString());
+        return entry;
+    }
 
-            if (stmt != null) {
-                try { stmt.close(); } catch (SQLException e) { /* ignore */ }
-            }
+    /** Destination first and Present last, so the PLC never acts on Present with an old destination */
+    private CompletableFuture<?> writeInstruction(ConveyorLine line, String QRCode, RoutingEntry entry)
+            throws RuntimeException {
+        TagWriteBatch batch = new TagWriteBatch()
+            .write(line.instructionDesiredDestination, entry.getDesiredDestination())
+            .write(line.instructionDestinationId, entry.getId())
+            .then()
+            .write(line.instructionPresent, 1);
 
-            if (rs != null) {
-                try { rs.close(); } catch (SQLException e) { /* ignore */ }
+        return publicTagManagerService.writeAsync(batch).whenComplete((result, failure) -> {
+            if (failure != null) {
+                logger.error("Failed to write instruction(" + QRCode + ") " + failure.getMessage());
+            } else if (!result.isGood()) {
+                logger.error("Failed to write instruction(" + QRCode + ") " + result.toString());
             }
+        });
+    }
+
+    private CompletableFuture<?> writeNoInstruction(ConveyorLine line, String QRCode) {
+        logger.info("No routing instruction line " + line.lineId + ": " + QRCode);
+        try {
+            return line.instructionPresent.setValueAsync(0)
+                .whenComplete((code, failure) -> {
+                    if (failure != null || code.isNotGood()) {
+                        logger.error("Failed to write no instruction(" + QRCode + ") "
+                                + (failure != null ? failure.getMessage() : code.toString()));
+                    }
+                });
+        } catch (RuntimeException e) {
+            logger.error("Failed to write no instruction(" + QRCode + ") " + e.getMessage());
+            return NOTHING_WRITTEN;
         }
     }
 
+    private void accTriggered(ConveyorLine line, PublicTagGroup.Snapshot snapshot) {
+        Object acc = snapshot.getTriggerValue();
+        if (!(acc instanceof Long) || (Long) acc == 0) {
+            logger.warn("Rejected ACC line " + line.lineId + ": " + acc);
+            return;
+        }
+        logger.info("ACC triggered line " + line.lineId + ": " + acc);
+
+        String destination = snapshot.getString(line.tagPath(PublicTagUtil.DESTINATION));
+        String reason = snapshot.getString(line.tagPath(PublicTagUtil.RESULT));
+        Date weighedAt = snapshot.getDate(line.tagPath(PublicTagUtil.WEIGH_DATETIME));
+        RoutingLog log = new RoutingLog(
+                snapshot.getString(line.tagPath(PublicTagUtil.WEIGH_INFO)),
+                snapshot.getString(line.tagPath(PublicTagUtil.QR_CODE)),
+                destination,
+                snapshot.getLong(line.tagPath(PublicTagUtil.INSTRUCTION_DESTINATION_ID)),
+                reason,
+                snapshot.getLong(line.tagPath(PublicTagUtil.WEIGH_WEIGHT)),
+                weighedAt == null ? null : weighedAt.toInstant().toString(),
+                destination,
+                reason);
+        routingLogWriter.offer(log);
+    }
+
+    /**
+     * Sample bin labels that currently have a routing entry, e.g. to generate routed bins
+     *
+     * @param max max number of labels
+     */
+    public List<String> getRoutedLabels(int max) {
+        return routingEntryCache.routedLabels(max);
+    }
+
+    /** Runtime statistics of the service, one item per line */
+    public String getStats() {
+        return pool.toString() + " breaker:" + databaseBreaker.getState() + "\n"
+            + routingLogWriter.toString() + "\n"
+            + routingEntryCache.toString() + "\n"
+            + deadlineStats.toString()
+            + lines.values().stream().map(line -> "\n" + line.toString()).collect(Collectors.joining());
+    }
+
 }
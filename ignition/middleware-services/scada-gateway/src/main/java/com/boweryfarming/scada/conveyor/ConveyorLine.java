@@ -0,0 +1,64 @@
+package com.boweryfarming.scada.conveyor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.boweryfarming.scada.tags.LongTag;
+import com.boweryfarming.scada.tags.PublicTagManagerService;
+import com.boweryfarming.scada.tags.PublicTagUtil;
+import com.boweryfarming.scada.tags.StringTag;
+
+/**
+ * Conveyor line driven by the gateway. Events of a line are handled in order on its own lane, so
+ * lines are processed in parallel and a slow line never holds up the others.
+ */
+class ConveyorLine {
+    final int lineId;
+    final long routingDeadlineMs;
+    final ExecutorService lane;
+    /** bumped on every QR code scan, a routing decision of an older scan is not written */
+    final AtomicLong scanSequence = new AtomicLong(0);
+    final AtomicLong supersededCount = new AtomicLong(0);
+
+    /** instruction tags written on every scan, see resolveTags */
+    StringTag instructionPresent;
+    StringTag instructionDesiredDestination;
+    LongTag instructionDestinationId;
+
+    ConveyorLine(int lineId, long routingDeadlineMs) {
+        this.lineId = lineId;
+        this.routingDeadlineMs = routingDeadlineMs;
+        this.lane = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BinConveyorLine-" + lineId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Public tag path of this line e.g., tagPath(PublicTagUtil.QR_CODE) */
+    String tagPath(String tag) {
+        return PublicTagUtil.binTagPath(lineId, tag);
+    }
+
+    /**
+     * Resolve the tag handles of the line once
+     * @throws RuntimeException when a tag is undefined or has an unexpected data type
+     */
+    void resolveTags(PublicTagManagerService tags) throws RuntimeException {
+        instructionPresent = tags.stringTag(tagPath(PublicTagUtil.INSTRUCTION_PRESENT));
+        instructionDesiredDestination = tags.stringTag(tagPath(PublicTagUtil.INSTRUCTION_DESIRED_DESTINATION));
+        instructionDestinationId = tags.longTag(tagPath(PublicTagUtil.INSTRUCTION_DESTINATION_ID));
+    }
+
+    void close() {
+        lane.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "line " + lineId + " deadline ms:" + routingDeadlineMs
+            + " scans:" + scanSequence.get()
+            + " superseded:" + supersededCount.get();
+    }
+}
@@ -0,0 +1,76 @@
+package com.boweryfarming.scada.conveyor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Counts met/missed routing deadlines and keeps a histogram of the slack left when met */
+public class DeadlineStats {
+    /** upper bounds (exclusive, ms) of the slack histogram buckets, the last bucket is unbounded */
+    static final long[] SLACK_BUCKETS_MS = { 10, 50, 100, 250, 500, 1000 };
+
+    private final AtomicLong metCount = new AtomicLong(0);
+    private final AtomicLong missedCount = new AtomicLong(0);
+    private final AtomicLong lateCompletedCount = new AtomicLong(0);
+    private final AtomicLongArray slackHistogram = new AtomicLongArray(SLACK_BUCKETS_MS.length + 1);
+    private final AtomicLong minSlackMillis = new AtomicLong(Long.MAX_VALUE);
+
+    /** Instruction, or that there is none, resolved with slackNanos left until the deadline */
+    public void met(long slackNanos) {
+        metCount.incrementAndGet();
+
+        long slack = TimeUnit.NANOSECONDS.toMillis(slackNanos);
+        int bucket = 0;
+        while (bucket < SLACK_BUCKETS_MS.length && slack >= SLACK_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        slackHistogram.incrementAndGet(bucket);
+
+        long min = minSlackMillis.get();
+        while (slack < min && !minSlackMillis.compareAndSet(min, slack)) {
+            min = minSlackMillis.get();
+        }
+    }
+
+    /** No instruction was resolved by the deadline */
+    public void missed() {
+        missedCount.incrementAndGet();
+    }
+
+    /** A lookup finished after its deadline was missed */
+    public void lateCompleted() {
+        lateCompletedCount.incrementAndGet();
+    }
+
+    public long getMetCount() {
+        return metCount.get();
+    }
+
+    public long getMissedCount() {
+        return missedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("deadline met:").append(metCount.get())
+            .append(" missed:").append(missedCount.get())
+            .append(" late completed:").append(lateCompletedCount.get());
+
+        long min = minSlackMillis.get();
+        sb.append(" min slack ms:").append(min == Long.MAX_VALUE ? "-" : String.valueOf(min));
+
+        sb.append(" slack ms");
+        long lower = 0;
+        for (int i = 0; i < slackHistogram.length(); i++) {
+            if (i < SLACK_BUCKETS_MS.length) {
+                sb.append(" [").append(lower).append("-").append(SLACK_BUCKETS_MS[i]).append("):");
+                lower = SLACK_BUCKETS_MS[i];
+            } else {
+                sb.append(" [").append(lower).append("-):");
+            }
+            sb.append(slackHistogram.get(i));
+        }
+        return sb.toString();
+    }
+}
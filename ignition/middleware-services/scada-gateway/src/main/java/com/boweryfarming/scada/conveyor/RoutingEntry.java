@@ -0,0 +1,47 @@
+package com.boweryfarming.scada.conveyor;
+
+/** Row of bin_conveyance_routing_entries that's relevant for routing a bin */
+public class RoutingEntry {
+    /** valid_till value used when the column is null */
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    private final long id;
+    private final String binLabel;
+    private final String desiredDestination;
+    private final long validTillMillis;
+
+    public RoutingEntry(long id, String binLabel, String desiredDestination, long validTillMillis) {
+        this.id = id;
+        this.binLabel = binLabel;
+        this.desiredDestination = desiredDestination;
+        this.validTillMillis = validTillMillis;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getBinLabel() {
+        return binLabel;
+    }
+
+    public String getDesiredDestination() {
+        return desiredDestination;
+    }
+
+    public long getValidTillMillis() {
+        return validTillMillis;
+    }
+
+    public boolean isValidAt(long timeMillis) {
+        return timeMillis < validTillMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "id:" + id
+            + " bin_label:" + binLabel
+            + " desired_destination:" + desiredDestination
+            + " valid_till:" + (validTillMillis == NO_EXPIRY ? "-" : new java.sql.Timestamp(validTillMillis).toString());
+    }
+}
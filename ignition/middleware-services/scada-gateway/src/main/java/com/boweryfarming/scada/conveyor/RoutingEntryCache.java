@@ -0,0 +1,369 @@
+package com.boweryfarming.scada.conveyor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.boweryfarming.scada.ScadaClock;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+
+/**
+ * Read-through cache of the latest routing entry per bin label.
+ *
+ * Entries expire at their valid_till, labels without a routing entry (or with an already expired
+ * one) are cached for negativeTtlMillis. Changes are picked up through LISTEN on the
+ * bin_conveyance_routing_entries channel, where each notification carries the changed bin label
+ * (see ignition-db/migrations/001_routing_entries_notify.sql). While the listener isn't connected nothing is cached, since
+ * changes could be missed.
+ *
+ * The notifications come from triggers installed by that migration when deploying, the gateway
+ * never changes the schema itself. The listener checks for them on every connect; while they're
+ * missing nothing is cached and the index is dropped, every lookup reads the database, since
+ * changes would never be noticed.
+ *
+ * Behind the per-label cache sits a {@link RoutingEntryIndex} of all valid entries. It's bulk loaded
+ * every time the listener (re)connects, so no change between the read and LISTEN is lost, and saved
+ * to the optional snapshot file. On start the snapshot is loaded before the database is reachable;
+ * it may be outdated until the first bulk load replaces it, which is preferred over kicking out
+ * every bin while the database is down.
+ *
+ * Expiry is checked on the {@link ScadaClock}, load times and reconnects are real time.
+ */
+public class RoutingEntryCache {
+    static final String NOTIFY_CHANNEL = "bin_conveyance_routing_entries";
+    static final String NOTIFY_TRIGGER = "bin_conveyance_routing_entries_notify";
+    static final String NOTIFY_MIGRATION = "001_routing_entries_notify.sql";
+    static final String SELECT_NOTIFY_TRIGGER =
+        "select 1 from pg_trigger t join pg_class c on c.oid = t.tgrelid"
+        + " where t.tgname = ? and c.relname = ? and not t.tgisinternal and t.tgenabled <> 'D'";
+    static final int LISTEN_POLL_TIMEOUT_MS = 1000;
+    static final long LISTEN_RECONNECT_DELAY_MS = 5000;
+    static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final RoutingRepository repository;
+    private final ScadaClock clock;
+    private final Logger logger;
+    private final long negativeTtlMillis;
+    private final long maxTtlMillis;
+    private final ConcurrentHashMap<String, CachedEntry> entries = new ConcurrentHashMap<String, CachedEntry>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor();
+    private final Thread listenerThread;
+    private final File snapshotFile;
+    private volatile RoutingEntryIndex index = RoutingEntryIndex.EMPTY;
+    private volatile boolean listening = false;
+    private volatile boolean notifyTriggerMissing = false;
+    private volatile boolean closed = false;
+
+    /** bumped on every invalidation so in-flight loads don't cache a result read before the change */
+    private final AtomicLong generation = new AtomicLong(0);
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong indexHitCount = new AtomicLong(0);
+    private final AtomicLong negativeHitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong staleCount = new AtomicLong(0);
+    private final AtomicLong invalidationCount = new AtomicLong(0);
+
+    static class CachedEntry {
+        final Optional<RoutingEntry> entry;
+        final long expiresAtMillis;
+
+        CachedEntry(Optional<RoutingEntry> entry, long expiresAtMillis) {
+            this.entry = entry;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    /**
+     * @param snapshotFile file to warm start the index from and save it to, null to disable
+     */
+    public RoutingEntryCache(RoutingRepository repository, ScadaClock clock, Logger logger,
+            long negativeTtlMillis, long maxTtlMillis, File snapshotFile) {
+        this.repository = repository;
+        this.clock = clock;
+        this.snapshotFile = snapshotFile;
+        this.logger = logger;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxTtlMillis = maxTtlMillis;
+        this.listenerThread = new Thread(this::listen, "RoutingEntryCacheListener");
+        this.listenerThread.setDaemon(true);
+    }
+
+    public void start() {
+        loadSnapshot();
+        listenerThread.start();
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        closed = true;
+        listenerThread.interrupt();
+        sweeper.shutdownNow();
+        entries.clear();
+    }
+
+    /** Latest routing entry of the bin label, from cache if possible */
+    public Optional<RoutingEntry> lookup(String binLabel) throws SQLException {
+        long now = clock.currentTimeMillis();
+        CachedEntry cached = entries.get(binLabel);
+        if (cached != null) {
+            if (now < cached.expiresAtMillis) {
+                if (cached.entry.isPresent()) {
+                    hitCount.incrementAndGet();
+                } else {
+                    negativeHitCount.incrementAndGet();
+                }
+                return cached.entry;
+            }
+
+            staleCount.incrementAndGet();
+            entries.remove(binLabel, cached);
+        }
+
+        long gen = generation.get();
+        Optional<RoutingEntry> indexed = index.get(binLabel, now);
+        if (indexed.isPresent()) {
+            indexHitCount.incrementAndGet();
+            cache(binLabel, indexed, now, gen);
+            return indexed;
+        }
+
+        missCount.incrementAndGet();
+        // an expired entry doesn't route the bin, same as the index
+        Optional<RoutingEntry> entry = repository.findLatestEntry(binLabel).filter(latest -> latest.isValidAt(now));
+        cache(binLabel, entry, now, gen);
+        return entry;
+    }
+
+    /** Cache the entry read at generation gen, unless it was invalidated meanwhile */
+    private void cache(String binLabel, Optional<RoutingEntry> entry, long now, long gen) {
+        if (!listening || gen != generation.get()) {
+            return;
+        }
+
+        CachedEntry cached = new CachedEntry(entry, expiresAt(entry, now));
+        entries.put(binLabel, cached);
+        // an invalidation between the check and the put has already removed the label, undo the put
+        if (!listening || gen != generation.get()) {
+            entries.remove(binLabel, cached);
+        }
+    }
+
+    private long expiresAt(Optional<RoutingEntry> entry, long now) {
+        if (!entry.isPresent()) {
+            return now + negativeTtlMillis;
+        }
+
+        return Math.min(entry.get().getValidTillMillis(), now + maxTtlMillis);
+    }
+
+    public void invalidate(String binLabel) {
+        generation.incrementAndGet();
+        invalidationCount.incrementAndGet();
+        entries.remove(binLabel);
+        index.invalidate(binLabel);
+    }
+
+    /** Drop cached lookups, the index is kept until it's reloaded */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        invalidationCount.incrementAndGet();
+        entries.clear();
+    }
+
+    /**
+     * Replace the index with all currently valid entries from the database. Runs on the listener
+     * thread after LISTEN, so notifications of changes made during the read are applied afterwards.
+     */
+    void reload() throws SQLException {
+        long start = System.currentTimeMillis();
+        RoutingEntryIndex.Builder builder = new RoutingEntryIndex.Builder(Math.max(index.size(), 1024));
+        repository.loadActiveEntries(builder);
+        index = builder.build();
+        invalidateAll();
+
+        logger.info("Loaded " + index.toString() + " in " + (System.currentTimeMillis() - start) + "ms");
+        saveSnapshot();
+    }
+
+    private void loadSnapshot() {
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            index = RoutingEntryIndex.readFrom(in, clock.currentTimeMillis());
+            logger.info("Loaded snapshot " + index.toString() + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException e) {
+            logger.warn("Failed to load routing entry snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+
+    private void saveSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            File dir = snapshotFile.getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                index.writeTo(out, clock.currentTimeMillis());
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Failed to save routing entry snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+
+    private void sweep() {
+        long now = clock.currentTimeMillis();
+        entries.values().removeIf(cached -> cached.expiresAtMillis <= now);
+    }
+
+    private void listen() {
+        while (!closed) {
+            Connection conn = null;
+            try {
+                conn = repository.getPool().openDedicated();
+                if (!checkNotifyTrigger(conn)) {
+                    // nothing would tell us about changes, read through to the database instead
+                    index = RoutingEntryIndex.EMPTY;
+                    invalidateAll();
+                    conn.close();
+                    conn = null;
+                    sleepBeforeReconnect();
+                    continue;
+                }
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LISTEN " + NOTIFY_CHANNEL);
+                }
+                PGConnection pgConn = conn.unwrap(PGConnection.class);
+                // anything cached before we were listening may be outdated
+                invalidateAll();
+                listening = true;
+                logger.info("Routing entry cache listening on " + NOTIFY_CHANNEL);
+                reload();
+
+                while (!closed) {
+                    PGNotification[] notifications = pgConn.getNotifications(LISTEN_POLL_TIMEOUT_MS);
+                    if (notifications == null) {
+                        continue;
+                    }
+
+                    for (PGNotification notification : notifications) {
+                        String binLabel = notification.getParameter();
+                        if (binLabel == null || binLabel.isEmpty()) {
+                            // truncated
+                            index = RoutingEntryIndex.EMPTY;
+                            invalidateAll();
+                        } else {
+                            invalidate(binLabel);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (!closed) {
+                    logger.warn("Routing entry cache listener disconnected: " + e.getMessage());
+                }
+            } finally {
+                listening = false;
+                invalidateAll();
+                if (conn != null) {
+                    try { conn.close(); } catch (SQLException e) { /* ignore */ }
+                }
+            }
+
+            sleepBeforeReconnect();
+        }
+    }
+
+    private void sleepBeforeReconnect() {
+        try {
+            Thread.sleep(LISTEN_RECONNECT_DELAY_MS);
+        } catch (InterruptedException ie) {
+            // closing
+        }
+    }
+
+    /**
+     * Check for the notify trigger of the routing entries table, logged once while it's missing
+     * @return false if there's no trigger, so notifications can't be trusted
+     */
+    private boolean checkNotifyTrigger(Connection conn) throws SQLException {
+        if (hasNotifyTrigger(conn)) {
+            if (notifyTriggerMissing) {
+                logger.info("Notify trigger " + NOTIFY_TRIGGER + " found, caching routing entries");
+            }
+            notifyTriggerMissing = false;
+            return true;
+        }
+
+        if (!notifyTriggerMissing) {
+            logger.error("Notify trigger " + NOTIFY_TRIGGER + " missing, routing entries aren't cached until "
+                    + "migration " + NOTIFY_MIGRATION + " is run on the database");
+        }
+        notifyTriggerMissing = true;
+        return false;
+    }
+
+    private boolean hasNotifyTrigger(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_NOTIFY_TRIGGER)) {
+            stmt.setString(1, NOTIFY_TRIGGER);
+            stmt.setString(2, RoutingRepository.TBL_ROUTING_ENTRIES);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /** Up to max bin labels with a valid routing entry in the preloaded index */
+    public List<String> routedLabels(int max) {
+        return index.labels(max, clock.currentTimeMillis());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "routing cache size:" + entries.size()
+            + " listening:" + listening
+            + (notifyTriggerMissing ? " notify trigger missing" : "")
+            + " hits:" + hitCount.get()
+            + " index hits:" + indexHitCount.get()
+            + " negative hits:" + negativeHitCount.get()
+            + " misses:" + missCount.get()
+            + " stale:" + staleCount.get()
+            + " invalidations:" + invalidationCount.get() + "\n"
+            + index.toString();
+    }
+}
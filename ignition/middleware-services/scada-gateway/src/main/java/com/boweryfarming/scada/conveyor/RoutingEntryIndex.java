@@ -0,0 +1,311 @@
+package com.boweryfarming.scada.conveyor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compact, read-mostly index of routing entries keyed by bin label.
+ *
+ * Entries are stored in parallel primitive arrays: labels are flattened into one char array and
+ * destinations are dictionary encoded, so an entry costs about 30 bytes plus two bytes per label
+ * character instead of a handful of objects. Lookups are an open addressing probe without
+ * allocation. The index is immutable except for {@link #invalidate(String)}, which expires an entry
+ * in place.
+ */
+public class RoutingEntryIndex {
+    static final int SNAPSHOT_MAGIC = 0x42524549; // "BREI"
+    static final int SNAPSHOT_VERSION = 1;
+
+    public static final RoutingEntryIndex EMPTY = new Builder().build();
+
+    private final int size;
+    private final char[] labelChars;
+    private final int[] labelOffsets; // size + 1 entries, label i is [labelOffsets[i], labelOffsets[i + 1])
+    private final int[] labelHashes;
+    private final long[] ids;
+    private final short[] destinations;
+    private final String[] destinationNames;
+    private final AtomicLongArray validTill;
+    private final int[] slots; // entry index + 1, 0 = empty
+    private final int mask;
+
+    private RoutingEntryIndex(int size, char[] labelChars, int[] labelOffsets, int[] labelHashes,
+            long[] ids, short[] destinations, String[] destinationNames, long[] validTill) {
+        this.size = size;
+        this.labelChars = labelChars;
+        this.labelOffsets = labelOffsets;
+        this.labelHashes = labelHashes;
+        this.ids = ids;
+        this.destinations = destinations;
+        this.destinationNames = destinationNames;
+        this.validTill = new AtomicLongArray(validTill);
+
+        int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = labelHashes[i] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    /** Routing entry of the bin label if it's in the index and valid at timeMillis */
+    public Optional<RoutingEntry> get(String binLabel, long timeMillis) {
+        int i = find(binLabel);
+        if (i < 0) {
+            return Optional.empty();
+        }
+
+        long till = validTill.get(i);
+        if (timeMillis >= till) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new RoutingEntry(ids[i], binLabel, destinationNames[destinations[i]], till));
+    }
+
+    /** Expire the entry of the bin label, returns false if the label isn't indexed */
+    public boolean invalidate(String binLabel) {
+        int i = find(binLabel);
+        if (i < 0) {
+            return false;
+        }
+
+        validTill.set(i, 0);
+        return true;
+    }
+
+    private int find(String binLabel) {
+        int hash = binLabel.hashCode();
+        int slot = hash & mask;
+        int entry;
+        while ((entry = slots[slot]) != 0) {
+            int i = entry - 1;
+            if (labelHashes[i] == hash && labelEquals(i, binLabel)) {
+                return i;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean labelEquals(int i, String binLabel) {
+        int start = labelOffsets[i];
+        int length = labelOffsets[i + 1] - start;
+        if (length != binLabel.length()) {
+            return false;
+        }
+
+        for (int c = 0; c < length; c++) {
+            if (labelChars[start + c] != binLabel.charAt(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String label(int i) {
+        return new String(labelChars, labelOffsets[i], labelOffsets[i + 1] - labelOffsets[i]);
+    }
+
+    /** Up to max labels valid at timeMillis, spread evenly over the index */
+    public List<String> labels(int max, long timeMillis) {
+        List<String> labels = new ArrayList<String>();
+        if (max <= 0 || size == 0) {
+            return labels;
+        }
+
+        int stride = Math.max(1, size / max);
+        for (int i = 0; i < size && labels.size() < max; i += stride) {
+            if (timeMillis < validTill.get(i)) {
+                labels.add(label(i));
+            }
+        }
+        return labels;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Write entries valid at timeMillis */
+    public void writeTo(DataOutputStream out, long timeMillis) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeLong(timeMillis);
+
+        out.writeInt(destinationNames.length);
+        for (String name : destinationNames) {
+            out.writeUTF(name);
+        }
+
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (timeMillis < validTill.get(i)) {
+                count++;
+            }
+        }
+
+        out.writeInt(count);
+        for (int i = 0; i < size; i++) {
+            long till = validTill.get(i);
+            if (timeMillis >= till) {
+                continue;
+            }
+            out.writeLong(ids[i]);
+            out.writeUTF(label(i));
+            out.writeShort(destinations[i]);
+            out.writeLong(till);
+        }
+    }
+
+    /** Read entries written by {@link #writeTo}, dropping those expired at timeMillis */
+    public static RoutingEntryIndex readFrom(DataInputStream in, long timeMillis) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a routing entry snapshot");
+        }
+        int version = in.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported routing entry snapshot version " + version);
+        }
+        in.readLong(); // saved at
+
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+
+        int count = in.readInt();
+        Builder builder = new Builder(count);
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            String label = in.readUTF();
+            short destination = in.readShort();
+            long till = in.readLong();
+            if (timeMillis < till) {
+                builder.add(id, label, names[destination], till);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return "routing index entries:" + size + " destinations:" + destinationNames.length
+            + " label chars:" + labelChars.length;
+    }
+
+    /** Collects entries, the latest id wins for duplicated labels */
+    public static class Builder {
+        private int size = 0;
+        private char[] labelChars;
+        private int[] labelOffsets;
+        private long[] ids;
+        private short[] destinations;
+        private long[] validTill;
+        private final Map<String, Short> destinationCodes = new HashMap<String, Short>();
+        private final List<String> destinationNames = new ArrayList<String>();
+        private final Map<String, Integer> positions = new HashMap<String, Integer>();
+
+        public Builder() {
+            this(256);
+        }
+
+        public Builder(int expectedSize) {
+            int capacity = Math.max(expectedSize, 16);
+            labelChars = new char[capacity * 16];
+            labelOffsets = new int[capacity + 1];
+            ids = new long[capacity];
+            destinations = new short[capacity];
+            validTill = new long[capacity];
+        }
+
+        public Builder add(RoutingEntry entry) {
+            return add(entry.getId(), entry.getBinLabel(), entry.getDesiredDestination(), entry.getValidTillMillis());
+        }
+
+        public Builder add(long id, String binLabel, String destination, long validTillMillis) {
+            Integer existing = positions.get(binLabel);
+            if (existing != null) {
+                if (ids[existing] < id) {
+                    ids[existing] = id;
+                    destinations[existing] = destinationCode(destination);
+                    validTill[existing] = validTillMillis;
+                }
+                return this;
+            }
+
+            if (size == ids.length) {
+                int capacity = ids.length * 2;
+                labelOffsets = Arrays.copyOf(labelOffsets, capacity + 1);
+                ids = Arrays.copyOf(ids, capacity);
+                destinations = Arrays.copyOf(destinations, capacity);
+                validTill = Arrays.copyOf(validTill, capacity);
+            }
+
+            int start = labelOffsets[size];
+            int end = start + binLabel.length();
+            if (end > labelChars.length) {
+                labelChars = Arrays.copyOf(labelChars, Math.max(end, labelChars.length * 2));
+            }
+            binLabel.getChars(0, binLabel.length(), labelChars, start);
+            labelOffsets[size + 1] = end;
+
+            ids[size] = id;
+            destinations[size] = destinationCode(destination);
+            validTill[size] = validTillMillis;
+            positions.put(binLabel, size);
+            size++;
+            return this;
+        }
+
+        private short destinationCode(String destination) {
+            String name = destination == null ? "" : destination;
+            Short code = destinationCodes.get(name);
+            if (code == null) {
+                if (destinationNames.size() > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Too many distinct destinations");
+                }
+                code = (short) destinationNames.size();
+                destinationCodes.put(name, code);
+                destinationNames.add(name);
+            }
+            return code;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public RoutingEntryIndex build() {
+            int[] hashes = new int[size];
+            for (int i = 0; i < size; i++) {
+                int hash = 0;
+                for (int c = labelOffsets[i]; c < labelOffsets[i + 1]; c++) {
+                    hash = 31 * hash + labelChars[c];
+                }
+                hashes[i] = hash;
+            }
+
+            return new RoutingEntryIndex(size,
+                    Arrays.copyOf(labelChars, labelOffsets[size]),
+                    Arrays.copyOf(labelOffsets, size + 1),
+                    hashes,
+                    Arrays.copyOf(ids, size),
+                    Arrays.copyOf(destinations, size),
+                    destinationNames.toArray(new String[0]),
+                    Arrays.copyOf(validTill, size));
+        }
+    }
+}
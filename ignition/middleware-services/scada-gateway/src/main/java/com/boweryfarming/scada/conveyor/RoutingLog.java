@@ -0,0 +1,91 @@
+package com.boweryfarming.scada.conveyor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/** Row of the cold pack weigh routing log, captured when ACC is triggered */
+public class RoutingLog {
+    final String rawBinLabel;
+    final String parsedBinLabel;
+    final String destination;
+    final Long routingEntryId;
+    final String reason;
+    final Long weightGrams;
+    final String deviceDatetime;
+    final String writePrototypeDestination;
+    final String writePrototypeReason;
+
+    public RoutingLog(String rawBinLabel,
+            String parsedBinLabel,
+            String destination,
+            Long routingEntryId,
+            String reason,
+            Long weightGrams,
+            String deviceDatetime,
+            String writePrototypeDestination,
+            String writePrototypeReason) {
+        this.rawBinLabel = rawBinLabel;
+        this.parsedBinLabel = parsedBinLabel;
+        this.destination = destination;
+        this.routingEntryId = routingEntryId;
+        this.reason = reason;
+        this.weightGrams = weightGrams;
+        this.deviceDatetime = deviceDatetime;
+        this.writePrototypeDestination = writePrototypeDestination;
+        this.writePrototypeReason = writePrototypeReason;
+    }
+
+    public String getParsedBinLabel() {
+        return parsedBinLabel;
+    }
+
+    /** Write the fields for {@link #readFrom}, e.g. into the spool */
+    public void writeTo(DataOutput out) throws IOException {
+        writeString(out, rawBinLabel);
+        writeString(out, parsedBinLabel);
+        writeString(out, destination);
+        writeLong(out, routingEntryId);
+        writeString(out, reason);
+        writeLong(out, weightGrams);
+        writeString(out, deviceDatetime);
+        writeString(out, writePrototypeDestination);
+        writeString(out, writePrototypeReason);
+    }
+
+    public static RoutingLog readFrom(DataInput in) throws IOException {
+        return new RoutingLog(readString(in), readString(in), readString(in), readLong(in), readString(in),
+                readLong(in), readString(in), readString(in), readString(in));
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void writeLong(DataOutput out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static Long readLong(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "bin:" + parsedBinLabel
+            + " destination:" + destination
+            + " entry:" + routingEntryId
+            + " reason:" + reason
+            + " weight:" + weightGrams;
+    }
+}
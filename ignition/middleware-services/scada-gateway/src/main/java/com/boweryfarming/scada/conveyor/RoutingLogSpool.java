@@ -0,0 +1,414 @@
+package com.boweryfarming.scada.conveyor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+/**
+ * Append-only journal of routing logs on memory-mapped segment files.
+ *
+ * Every routing log is appended here before it's queued for the database, so rows survive a
+ * database outage (and a gateway restart) and are replayed in order once the database is back.
+ * Records are numbered; the writer acknowledges the highest sequence written to the database and
+ * segments holding only acknowledged records are deleted. Mapped pages are forced to disk in
+ * batches every syncIntervalMillis instead of once per record.
+ *
+ * Record layout: int payload length, long seq, payload, int crc32 of the payload. A zero length
+ * ends a segment, a record with a bad crc or out of sequence is treated as a torn write and ends it
+ * as well.
+ */
+public class RoutingLogSpool {
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".spool";
+    static final String CHECKPOINT_FILE = "checkpoint";
+    static final int RECORD_OVERHEAD = 4 + 8 + 4;
+
+    private final File dir;
+    private final Logger logger;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long syncIntervalMillis;
+
+    /** segments by their first sequence, guarded by this */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private Segment active;
+    private long lastSeq = 0;
+    private volatile long ackedSeq = 0;
+    private volatile long syncedSeq = 0;
+    private volatile boolean open = false;
+    private ScheduledExecutorService syncer;
+
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    private final CRC32 crc = new CRC32();
+
+    /** position of the next record to read, saves rescanning a segment on every replay batch */
+    private Segment readSegment;
+    private int readPosition;
+    private long readSeq;
+
+    private final AtomicLong appendedCount = new AtomicLong(0);
+    private final AtomicLong syncCount = new AtomicLong(0);
+    private final AtomicLong maxSyncMicros = new AtomicLong(0);
+    private final AtomicLong deletedSegmentCount = new AtomicLong(0);
+
+    /** Spooled routing log and its sequence, seq is -1 if the log couldn't be spooled */
+    public static class Record {
+        final long seq;
+        final RoutingLog log;
+
+        Record(long seq, RoutingLog log) {
+            this.seq = seq;
+            this.log = log;
+        }
+    }
+
+    static class Segment {
+        final File file;
+        final long firstSeq;
+        final MappedByteBuffer buffer;
+        int writePosition = 0;
+        long lastSeq;
+
+        Segment(File file, long firstSeq, int size) throws IOException {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.lastSeq = firstSeq - 1;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                // the mapping stays valid after the channel is closed
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+    }
+
+    /**
+     * @param segmentSize bytes per segment file
+     * @param maxSegments appends fail once this many segments hold unacknowledged records
+     */
+    public RoutingLogSpool(File dir, Logger logger, int segmentSize, int maxSegments, long syncIntervalMillis) {
+        this.dir = dir;
+        this.logger = logger;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /** Recover segments and the checkpoint left by the last run and start syncing */
+    public synchronized void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create spool directory " + dir);
+        }
+
+        File checkpoint = new File(dir, CHECKPOINT_FILE);
+        if (checkpoint.exists()) {
+            ackedSeq = Long.parseLong(new String(Files.readAllBytes(checkpoint.toPath()),
+                        StandardCharsets.US_ASCII).trim());
+        }
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            long firstSeq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(file, firstSeq, (int) Math.max(file.length(), segmentSize));
+            recover(segment);
+            segments.put(firstSeq, segment);
+        }
+
+        lastSeq = ackedSeq;
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+            lastSeq = Math.max(lastSeq, active.lastSeq);
+        }
+        if (active == null || active.lastSeq < ackedSeq) {
+            // nothing left to replay, start over past the checkpoint
+            roll();
+        }
+        syncedSeq = lastSeq;
+        deleteAcknowledged();
+
+        syncer = Executors.newSingleThreadScheduledExecutor();
+        syncer.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        open = true;
+
+        logger.info("Opened routing log spool " + dir + ": " + toString());
+    }
+
+    /** Find the end of the valid records of a segment */
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        long expected = segment.firstSeq;
+        while (position + RECORD_OVERHEAD <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_OVERHEAD + length > buffer.capacity()) {
+                break;
+            }
+            if (buffer.getLong(position + 4) != expected
+                    || buffer.getInt(position + 12 + length) != crc(buffer, position + 12, length)) {
+                logger.warn("Truncating spool segment " + segment.file.getName() + " at seq " + expected);
+                break;
+            }
+            position += RECORD_OVERHEAD + length;
+            expected++;
+        }
+        segment.writePosition = position;
+        segment.lastSeq = expected - 1;
+    }
+
+    private int crc(ByteBuffer buffer, int position, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.limit(position + length);
+        crc.reset();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    /** Force mapped pages of the segments written since the last sync */
+    private void sync() {
+        List<Segment> dirty = new ArrayList<Segment>();
+        long seq;
+        synchronized (this) {
+            seq = lastSeq;
+            if (seq == syncedSeq) {
+                return;
+            }
+            for (Segment segment : segments.values()) {
+                if (segment.lastSeq > syncedSeq) {
+                    dirty.add(segment);
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        for (Segment segment : dirty) {
+            segment.buffer.force();
+        }
+        syncedSeq = seq;
+        syncCount.incrementAndGet();
+
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        if (micros > maxSyncMicros.get()) {
+            maxSyncMicros.set(micros);
+        }
+    }
+
+    /**
+     * Append a routing log
+     * @return sequence of the record
+     * @throws IOException when the spool isn't open, full or can't roll a segment
+     */
+    public synchronized long append(RoutingLog log) throws IOException {
+        if (!open) {
+            throw new IOException("Routing log spool not open");
+        }
+
+        payload.reset();
+        log.writeTo(payloadOut);
+        int length = payload.size();
+        int recordSize = RECORD_OVERHEAD + length;
+        if (recordSize + 4 > segmentSize) {
+            throw new IOException("Routing log of " + length + " bytes doesn't fit a spool segment");
+        }
+
+        if (active.writePosition + recordSize + 4 > segmentSize) {
+            if (segments.size() >= maxSegments) {
+                throw new IOException("Routing log spool full, backlog:" + getBacklog());
+            }
+            roll();
+        }
+
+        long seq = lastSeq + 1;
+        byte[] bytes = payload.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, length);
+
+        MappedByteBuffer buffer = active.buffer;
+        int position = active.writePosition;
+        buffer.putLong(position + 4, seq);
+        buffer.position(position + 12);
+        buffer.put(bytes, 0, length);
+        buffer.putInt(position + 12 + length, (int) crc.getValue());
+        // end marker, the tail may hold a torn record of a previous run
+        buffer.putInt(position + recordSize, 0);
+        // length last, a record is only visible once it's complete
+        buffer.putInt(position, length);
+
+        active.writePosition = position + recordSize;
+        active.lastSeq = seq;
+        lastSeq = seq;
+        appendedCount.incrementAndGet();
+        return seq;
+    }
+
+    private void roll() throws IOException {
+        long firstSeq = lastSeq + 1;
+        if (active != null) {
+            active.buffer.force();
+        }
+        File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        active = new Segment(file, firstSeq, segmentSize);
+        segments.put(firstSeq, active);
+    }
+
+    /**
+     * Read up to max records starting at fromSeq, in order. Records before the oldest segment were
+     * acknowledged already, reading starts at the oldest segment then.
+     */
+    public synchronized List<Record> read(long fromSeq, int max) throws IOException {
+        List<Record> records = new ArrayList<Record>(max);
+        if (segments.isEmpty() || fromSeq > lastSeq) {
+            return records;
+        }
+
+        Segment segment;
+        int position;
+        long seq;
+        if (readSegment != null && readSeq == fromSeq && segments.containsKey(readSegment.firstSeq)) {
+            segment = readSegment;
+            position = readPosition;
+            seq = readSeq;
+        } else {
+            Map.Entry<Long, Segment> floor = segments.floorEntry(fromSeq);
+            segment = floor == null ? segments.firstEntry().getValue() : floor.getValue();
+            position = 0;
+            seq = segment.firstSeq;
+            while (seq < fromSeq && seq <= segment.lastSeq) {
+                position += RECORD_OVERHEAD + segment.buffer.getInt(position);
+                seq++;
+            }
+        }
+
+        while (records.size() < max && seq <= lastSeq) {
+            if (seq > segment.lastSeq) {
+                Map.Entry<Long, Segment> next = segments.higherEntry(segment.firstSeq);
+                if (next == null) {
+                    break;
+                }
+                segment = next.getValue();
+                position = 0;
+                seq = segment.firstSeq;
+                continue;
+            }
+
+            int length = segment.buffer.getInt(position);
+            byte[] bytes = new byte[length];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(position + 12);
+            buffer.get(bytes);
+            records.add(new Record(seq, RoutingLog.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)))));
+
+            position += RECORD_OVERHEAD + length;
+            seq++;
+        }
+
+        readSegment = segment;
+        readPosition = position;
+        readSeq = seq;
+        return records;
+    }
+
+    /** Records up to seq are in the database, checkpoint and delete segments holding only those */
+    public void acknowledge(long seq) throws IOException {
+        if (seq <= ackedSeq) {
+            return;
+        }
+        ackedSeq = seq;
+
+        File checkpoint = new File(dir, CHECKPOINT_FILE);
+        File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+        Files.write(tmp.toPath(), Long.toString(seq).getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp.toPath(), checkpoint.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            deleteAcknowledged();
+        }
+    }
+
+    private void deleteAcknowledged() {
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == active || oldest.lastSeq > ackedSeq) {
+                break;
+            }
+            segments.remove(oldest.firstSeq);
+            if (readSegment == oldest) {
+                readSegment = null;
+            }
+            if (!oldest.file.delete()) {
+                logger.warn("Failed to delete spool segment " + oldest.file);
+            }
+            deletedSegmentCount.incrementAndGet();
+        }
+    }
+
+    /** Force everything appended and stop syncing */
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        syncer.shutdownNow();
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        syncedSeq = lastSeq;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public long getAckedSeq() {
+        return ackedSeq;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /** Records appended but not acknowledged yet */
+    public synchronized long getBacklog() {
+        return lastSeq - ackedSeq;
+    }
+
+    public long getAppendedCount() {
+        return appendedCount.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "spool segments:" + segments.size() + "/" + maxSegments
+            + " backlog:" + (lastSeq - ackedSeq)
+            + " last seq:" + lastSeq
+            + " acked seq:" + ackedSeq
+            + " synced seq:" + syncedSeq
+            + " appended:" + appendedCount.get()
+            + " syncs:" + syncCount.get()
+            + " max sync us:" + maxSyncMicros.get()
+            + " deleted segments:" + deletedSegmentCount.get();
+    }
+}
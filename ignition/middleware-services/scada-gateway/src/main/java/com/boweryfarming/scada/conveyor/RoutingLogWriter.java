@@ -0,0 +1,356 @@
+package com.boweryfarming.scada.conveyor;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.boweryfarming.scada.ScadaClock;
+import com.boweryfarming.scada.conveyor.RoutingLogSpool.Record;
+
+/**
+ * Write-behind routing log writer.
+ *
+ * Routing logs are queued on a bounded queue and written by a single writer thread with multi-row
+ * inserts. A batch is flushed when it reaches maxBatchSize rows or when its oldest row has waited
+ * maxBatchAgeMillis, so a row is written at most maxBatchAgeMillis (plus the insert itself) after
+ * it was queued.
+ *
+ * Each row is appended to the {@link RoutingLogSpool} before it's queued. The queue is only the
+ * fast path: rows that didn't fit the queue, failed to insert or were left over by the last run are
+ * replayed from the spool in order, and the spool is acknowledged after each insert. Rows are
+ * written at least once, a row can be written twice if the gateway stops between an insert and its
+ * acknowledgement. Without an open spool, rows are rejected when the queue is full and dropped
+ * after MAX_FLUSH_ATTEMPTS as before.
+ *
+ * Retry and replay backoffs wait on the {@link ScadaClock}, the batch age is real time since it
+ * bounds how long rows wait for the database.
+ */
+public class RoutingLogWriter implements Runnable {
+    static final int MAX_FLUSH_ATTEMPTS = 3;
+    static final long FLUSH_RETRY_DELAY_MS = 200;
+    static final long REPLAY_BACKOFF_MS = 2000;
+
+    private final RoutingRepository repository;
+    private final RoutingLogSpool spool;
+    private final ScadaClock clock;
+    private final Logger logger;
+    private final BlockingQueue<Record> queue;
+    private final int maxBatchSize;
+    private final long maxBatchAgeMillis;
+    private final Thread thread;
+    private volatile boolean closing = false;
+
+    private final AtomicLong enqueuedCount = new AtomicLong(0);
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+    private final AtomicLong spilledCount = new AtomicLong(0);
+    private final AtomicLong writtenCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong flushCount = new AtomicLong(0);
+    private final AtomicLong maxFlushMillis = new AtomicLong(0);
+    private final AtomicLong maxQueueDepth = new AtomicLong(0);
+    private final AtomicLong replayedCount = new AtomicLong(0);
+    private final AtomicLong replayNanos = new AtomicLong(0);
+
+    /**
+     * @param spool journal written ahead of the queue, appends fall back to the queue only while
+     *        it isn't open
+     */
+    public RoutingLogWriter(RoutingRepository repository, RoutingLogSpool spool, ScadaClock clock, Logger logger,
+            int capacity, int maxBatchSize, long maxBatchAgeMillis) {
+        this.repository = repository;
+        this.spool = spool;
+        this.clock = clock;
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<Record>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchAgeMillis = maxBatchAgeMillis;
+        this.thread = new Thread(this, "RoutingLogWriter");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queue routing log to be written
+     * @return false if the log was rejected because the writer is full or closing
+     */
+    public boolean offer(RoutingLog log) {
+        if (closing) {
+            rejectedCount.incrementAndGet();
+            logger.warn("Routing log rejected (closing): " + log.toString());
+            return false;
+        }
+
+        if (spool.isOpen()) {
+            // appended and queued under the spool lock so the queue stays in sequence order
+            synchronized (spool) {
+                try {
+                    long seq = spool.append(log);
+                    if (!queue.offer(new Record(seq, log))) {
+                        // replayed from the spool
+                        spilledCount.incrementAndGet();
+                    }
+                    enqueuedCount.incrementAndGet();
+                    updateMaxQueueDepth();
+                    return true;
+                } catch (IOException e) {
+                    logger.error("Failed to spool routing log: " + e.getMessage());
+                }
+            }
+        }
+
+        if (!queue.offer(new Record(-1, log))) {
+            rejectedCount.incrementAndGet();
+            logger.warn("Routing log rejected (queue depth:" + queue.size() + "): " + log.toString());
+            return false;
+        }
+
+        enqueuedCount.incrementAndGet();
+        updateMaxQueueDepth();
+        return true;
+    }
+
+    private void updateMaxQueueDepth() {
+        long depth = queue.size();
+        if (depth > maxQueueDepth.get()) {
+            maxQueueDepth.set(depth);
+        }
+    }
+
+    /**
+     * Stop accepting new logs, write everything queued and wait for the writer thread. Spooled logs
+     * that can't be written in time are replayed on the next start.
+     * @param timeoutMillis max time to wait for the queue to drain
+     */
+    public void close(long timeoutMillis) {
+        closing = true;
+        thread.interrupt();
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (thread.isAlive()) {
+            logger.warn("Routing log writer didn't drain in " + timeoutMillis + "ms, pending:" + queue.size());
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Record> batch = new ArrayList<Record>(maxBatchSize);
+        while (!closing) {
+            try {
+                // with a backlog, don't wait on the queue for the replay to start
+                Record first = spool.getBacklog() > 0
+                    ? queue.poll(maxBatchAgeMillis, TimeUnit.MILLISECONDS)
+                    : queue.take();
+                if (first != null) {
+                    batch.add(first);
+                }
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchAgeMillis);
+                while (first != null && batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+
+                    Record next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException ie) {
+                // closing, drain below
+            }
+
+            if (!write(batch)) {
+                backoff();
+            }
+        }
+
+        // drain on close, whatever isn't written stays in the spool
+        do {
+            queue.drainTo(batch, maxBatchSize);
+        } while (write(batch) && !queue.isEmpty());
+        logger.info("Routing log writer stopped: " + toString());
+    }
+
+    private void backoff() {
+        try {
+            clock.sleep(REPLAY_BACKOFF_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            // closing
+        }
+    }
+
+    /**
+     * Write the batch, catching up on the spool first if it's ahead of the batch
+     * @return false if spooled logs are left to replay
+     */
+    private boolean write(List<Record> batch) {
+        List<RoutingLog> unspooled = new ArrayList<RoutingLog>();
+        List<Record> spooled = new ArrayList<Record>(batch.size());
+        long acked = spool.getAckedSeq();
+        for (Record record : batch) {
+            if (record.seq < 0) {
+                unspooled.add(record.log);
+            } else if (record.seq > acked) {
+                spooled.add(record);
+            }
+        }
+        batch.clear();
+
+        if (!unspooled.isEmpty() && !flush(unspooled)) {
+            failedCount.addAndGet(unspooled.size());
+        }
+
+        if (!spooled.isEmpty() && spooled.get(0).seq == acked + 1
+                && spooled.get(spooled.size() - 1).seq == acked + spooled.size()) {
+            // in sequence, write straight from the queue
+            return writeSpooled(spooled);
+        }
+
+        return replay();
+    }
+
+    /** Write everything appended to the spool so far */
+    private boolean replay() {
+        long target = spool.getLastSeq();
+        if (spool.getAckedSeq() >= target) {
+            return true;
+        }
+
+        logger.info("Replaying " + (target - spool.getAckedSeq()) + " routing logs from spool");
+        long start = System.nanoTime();
+        long replayed = 0;
+        try {
+            while (spool.getAckedSeq() < target) {
+                List<Record> records = spool.read(spool.getAckedSeq() + 1, maxBatchSize);
+                if (records.isEmpty()) {
+                    break;
+                }
+                if (!writeSpooled(records)) {
+                    return false;
+                }
+                replayed += records.size();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read routing log spool: " + e.getMessage());
+            return false;
+        } finally {
+            replayedCount.addAndGet(replayed);
+            replayNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        logger.info("Replayed " + replayed + " routing logs in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        return true;
+    }
+
+    private boolean writeSpooled(List<Record> records) {
+        List<RoutingLog> logs = new ArrayList<RoutingLog>(records.size());
+        for (Record record : records) {
+            logs.add(record.log);
+        }
+        if (!flush(logs)) {
+            return false;
+        }
+
+        try {
+            spool.acknowledge(records.get(records.size() - 1).seq);
+        } catch (IOException e) {
+            // the rows are written, at worst they are replayed once more after a restart
+            logger.error("Failed to checkpoint routing log spool: " + e.getMessage());
+        }
+        return true;
+    }
+
+    private boolean flush(List<RoutingLog> batch) {
+        long start = System.nanoTime();
+        boolean written = false;
+        for (int attempt = 1; attempt <= MAX_FLUSH_ATTEMPTS; attempt++) {
+            try {
+                repository.insertRoutingLogs(batch);
+                writtenCount.addAndGet(batch.size());
+                written = true;
+                break;
+            } catch (SQLException e) {
+                logger.error("Failed to write " + batch.size() + " routing logs (attempt " + attempt + "): "
+                        + e.getMessage());
+                if (attempt == MAX_FLUSH_ATTEMPTS) {
+                    break;
+                }
+
+                try {
+                    clock.sleep(FLUSH_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    // keep retrying, the batch is drained on close
+                }
+            }
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (elapsed > maxFlushMillis.get()) {
+            maxFlushMillis.set(elapsed);
+        }
+        flushCount.incrementAndGet();
+        return written;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /** Rows replayed from the spool per second spent replaying */
+    public long getReplayRate() {
+        long nanos = replayNanos.get();
+        return nanos == 0 ? 0 : replayedCount.get() * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "log writer depth:" + queue.size() + " (max:" + maxQueueDepth.get() + ")"
+            + " enqueued:" + enqueuedCount.get()
+            + " rejected:" + rejectedCount.get()
+            + " spilled:" + spilledCount.get()
+            + " written:" + writtenCount.get()
+            + " failed:" + failedCount.get()
+            + " flushes:" + flushCount.get()
+            + " max flush ms:" + maxFlushMillis.get()
+            + " replayed:" + replayedCount.get()
+            + " replay rows/s:" + getReplayRate() + "\n"
+            + spool.toString();
+    }
+}
@@ -0,0 +1,264 @@
+package com.boweryfarming.scada.conveyor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.Optional;
+
+import com.boweryfarming.scada.db.ConnectionPool;
+import com.boweryfarming.scada.db.DatabaseUnavailableException;
+import com.boweryfarming.scada.db.PooledConnection;
+
+import net.jodah.failsafe.CircuitBreaker;
+
+/** Data access for bin conveyance routing entries and routing logs */
+public class RoutingRepository {
+    static final String TBL_ROUTING_ENTRIES = "bin_conveyance_routing_entries";
+    static final String TBL_ROUTING_LOGS = "bin_conveyance_farm_2_prototype_cold_pack_weigh_routing_logs";
+
+    static final String SELECT_LATEST_ENTRY =
+        "select id, bin_label, desired_destination, valid_till from " + TBL_ROUTING_ENTRIES
+        + " where bin_label = ? order by id desc limit 1";
+
+    /** Latest entry per bin label, only if it's still valid */
+    static final String SELECT_ACTIVE_ENTRIES =
+        "select id, bin_label, desired_destination, valid_till from ("
+        + "select distinct on (bin_label) id, bin_label, desired_destination, valid_till from " + TBL_ROUTING_ENTRIES
+        + " order by bin_label, id desc) latest"
+        + " where valid_till is null or valid_till > now()";
+
+    static final int BULK_FETCH_SIZE = 1000;
+
+    static final String ROUTING_LOG_COLUMNS =
+        "raw_bin_label, parsed_bin_label, destination, "
+        + "bin_conveyance_routing_entry_id, reason, weight_grams, "
+        + "device_datetime, inserted_at, updated_at, "
+        + "write_prototype_destination, write_prototype_reason";
+
+    static final String ROUTING_LOG_VALUES = "(?, ?, ?, ?, ?, ?, ?, now(), now(), ?, ?)";
+
+    static final String INSERT_ROUTING_LOG =
+        "insert into " + TBL_ROUTING_LOGS + " (" + ROUTING_LOG_COLUMNS + ") values " + ROUTING_LOG_VALUES;
+
+    /**
+     * Rows per multi-row insert, largest first. A batch is inserted in chunks of these sizes so each
+     * connection caches only a few statements whatever the batch sizes are.
+     */
+    static final int[] INSERT_CHUNK_ROWS = { 100, 10, 1 };
+    static final String[] INSERT_CHUNK_SQL = new String[INSERT_CHUNK_ROWS.length];
+    static {
+        for (int i = 0; i < INSERT_CHUNK_ROWS.length; i++) {
+            INSERT_CHUNK_SQL[i] = insertRoutingLogsSql(INSERT_CHUNK_ROWS[i]);
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final CircuitBreaker<Object> breaker;
+
+    /**
+     * @param breaker opened by repeated database failures, while open calls fail fast with
+     *        {@link DatabaseUnavailableException}
+     */
+    public RoutingRepository(ConnectionPool pool, CircuitBreaker<Object> breaker) {
+        this.pool = pool;
+        this.breaker = breaker;
+    }
+
+    private PooledConnection acquire() throws SQLException {
+        if (!breaker.allowsExecution()) {
+            throw new DatabaseUnavailableException("Database circuit breaker open");
+        }
+
+        breaker.preExecute();
+        try {
+            return pool.acquire();
+        } catch (SQLException e) {
+            breaker.recordFailure(e);
+            throw e;
+        }
+    }
+
+    private void release(PooledConnection conn, SQLException failure) {
+        if (failure == null) {
+            breaker.recordSuccess();
+        } else {
+            conn.invalidate();
+            breaker.recordFailure(failure);
+        }
+        conn.close();
+    }
+
+    /** Latest routing entry for the bin label regardless of valid_till */
+    public Optional<RoutingEntry> findLatestEntry(String binLabel) throws SQLException {
+        PooledConnection conn = acquire();
+        SQLException failure = null;
+        try {
+            PreparedStatement stmt = conn.prepare(SELECT_LATEST_ENTRY);
+            stmt.setString(1, binLabel);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                return Optional.of(readEntry(rs));
+            }
+        } catch (SQLException e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(conn, failure);
+        }
+    }
+
+    /**
+     * Stream all currently valid routing entries into the builder with a server-side cursor
+     * @return number of entries read
+     */
+    public int loadActiveEntries(RoutingEntryIndex.Builder builder) throws SQLException {
+        PooledConnection conn = acquire();
+        SQLException failure = null;
+        Connection raw = conn.getConnection();
+        try {
+            // the driver only uses a cursor (instead of reading the whole result) inside a transaction
+            raw.setAutoCommit(false);
+            int count = 0;
+            try (Statement stmt = raw.createStatement()) {
+                stmt.setFetchSize(BULK_FETCH_SIZE);
+                try (ResultSet rs = stmt.executeQuery(SELECT_ACTIVE_ENTRIES)) {
+                    while (rs.next()) {
+                        Timestamp validTill = rs.getTimestamp(4);
+                        builder.add(rs.getLong(1), rs.getString(2), rs.getString(3),
+                                validTill == null ? RoutingEntry.NO_EXPIRY : validTill.getTime());
+                        count++;
+                    }
+                }
+            }
+            raw.commit();
+            raw.setAutoCommit(true);
+            return count;
+        } catch (SQLException e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(conn, failure);
+        }
+    }
+
+    public void insertRoutingLog(RoutingLog log) throws SQLException {
+        PooledConnection conn = acquire();
+        SQLException failure = null;
+        try {
+            PreparedStatement stmt = conn.prepare(INSERT_ROUTING_LOG);
+            bindRoutingLog(stmt, 1, log);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(conn, failure);
+        }
+    }
+
+    /**
+     * Insert routing logs with multi-row inserts of INSERT_CHUNK_ROWS, in one transaction so the
+     * batch is inserted as a whole or not at all
+     */
+    public void insertRoutingLogs(List<RoutingLog> logs) throws SQLException {
+        if (logs.isEmpty()) {
+            return;
+        }
+
+        PooledConnection conn = acquire();
+        SQLException failure = null;
+        Connection raw = conn.getConnection();
+        try {
+            boolean transaction = logs.size() > 1 && !isChunkSize(logs.size());
+            if (transaction) {
+                raw.setAutoCommit(false);
+            }
+            int offset = 0;
+            for (int chunk = 0; chunk < INSERT_CHUNK_ROWS.length; chunk++) {
+                int rows = INSERT_CHUNK_ROWS[chunk];
+                while (logs.size() - offset >= rows) {
+                    PreparedStatement stmt = conn.prepare(INSERT_CHUNK_SQL[chunk]);
+                    int i = 1;
+                    for (RoutingLog log : logs.subList(offset, offset + rows)) {
+                        i = bindRoutingLog(stmt, i, log);
+                    }
+                    stmt.executeUpdate();
+                    offset += rows;
+                }
+            }
+            if (transaction) {
+                raw.commit();
+                raw.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(conn, failure);
+        }
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    private static boolean isChunkSize(int rows) {
+        for (int chunkRows : INSERT_CHUNK_ROWS) {
+            if (chunkRows == rows) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String insertRoutingLogsSql(int rows) {
+        StringBuilder sb = new StringBuilder(INSERT_ROUTING_LOG.length() + rows * ROUTING_LOG_VALUES.length());
+        sb.append("insert into ").append(TBL_ROUTING_LOGS).append(" (").append(ROUTING_LOG_COLUMNS).append(") values ");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(ROUTING_LOG_VALUES);
+        }
+        return sb.toString();
+    }
+
+    static RoutingEntry readEntry(ResultSet rs) throws SQLException {
+        Timestamp validTill = rs.getTimestamp("valid_till");
+        return new RoutingEntry(
+                rs.getLong("id"),
+                rs.getString("bin_label"),
+                rs.getString("desired_destination"),
+                validTill == null ? RoutingEntry.NO_EXPIRY : validTill.getTime());
+    }
+
+    /** Bind routing log values starting at parameterIndex, returns the next parameter index */
+    static int bindRoutingLog(PreparedStatement stmt, int parameterIndex, RoutingLog log) throws SQLException {
+        int i = parameterIndex;
+        stmt.setString(i++, log.rawBinLabel);
+        stmt.setString(i++, log.parsedBinLabel);
+        stmt.setString(i++, log.destination);
+        setNullableLong(stmt, i++, log.routingEntryId);
+        stmt.setString(i++, log.reason);
+        setNullableLong(stmt, i++, log.weightGrams);
+        stmt.setString(i++, log.deviceDatetime);
+        stmt.setString(i++, log.writePrototypeDestination);
+        stmt.setString(i++, log.writePrototypeReason);
+        return i;
+    }
+
+    private static void setNullableLong(PreparedStatement stmt, int index, Long value) throws SQLException {
+        if (value == null) {
+            stmt.setNull(index, Types.BIGINT);
+        } else {
+            stmt.setLong(index, value);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.boweryfarming.scada.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded JDBC connection pool.
+ *
+ * Connections are opened lazily (so the pool can be created while the database is unreachable)
+ * and never exceed maxSize. Each pooled connection keeps its own prepared statement cache.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private final String url;
+    private final Properties properties;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+
+    private final Semaphore permits;
+    private final BlockingQueue<PooledConnection> idle;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger activeCount = new AtomicInteger(0);
+    private final AtomicInteger totalCount = new AtomicInteger(0);
+    private final AtomicLong acquireCount = new AtomicLong(0);
+    private final AtomicLong timeoutCount = new AtomicLong(0);
+    private final AtomicLong createdCount = new AtomicLong(0);
+    private final AtomicLong totalWaitNanos = new AtomicLong(0);
+    private final AtomicLong maxWaitNanos = new AtomicLong(0);
+
+    public ConnectionPool(String url, String user, String password, int maxSize, long acquireTimeoutMillis) {
+        this.url = url;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+        this.idle = new LinkedBlockingQueue<PooledConnection>(maxSize);
+
+        this.properties = new Properties();
+        this.properties.setProperty("user", user);
+        this.properties.setProperty("password", password);
+        // use server-side prepared statements from the first execution
+        this.properties.setProperty("prepareThreshold", "1");
+        // let the server infer parameter types (e.g. text parameters into timestamp columns)
+        this.properties.setProperty("stringtype", "unspecified");
+    }
+
+    /**
+     * Borrow a connection. Callers must close() the returned connection to give it back.
+     * @throws SQLException when no connection becomes available in time or the database is unreachable
+     */
+    public PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool closed");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLException("Timed out waiting for connection after " + acquireTimeoutMillis + "ms");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for connection");
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection conn = idle.poll();
+            while (conn != null && !conn.isUsable()) {
+                discard(conn);
+                conn = idle.poll();
+            }
+
+            if (conn == null) {
+                conn = open();
+            }
+
+            activeCount.incrementAndGet();
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection conn) {
+        activeCount.decrementAndGet();
+        if (closed || conn.isBroken() || !idle.offer(conn)) {
+            discard(conn);
+        }
+        permits.release();
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection raw = DriverManager.getConnection(url, properties);
+        totalCount.incrementAndGet();
+        createdCount.incrementAndGet();
+        return new PooledConnection(this, raw);
+    }
+
+    /** Open a connection outside of the pool for long lived use, e.g. LISTEN. Caller owns and closes it */
+    public Connection openDedicated() throws SQLException {
+        return DriverManager.getConnection(url, properties);
+    }
+
+    private void discard(PooledConnection conn) {
+        totalCount.decrementAndGet();
+        conn.closeQuietly();
+    }
+
+    private void recordWait(long nanos) {
+        acquireCount.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection conn;
+        while ((conn = idle.poll()) != null) {
+            discard(conn);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getAverageWaitMicros() {
+        long count = acquireCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / count);
+    }
+
+    public long getMaxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "pool active:" + getActiveCount()
+            + " idle:" + getIdleCount()
+            + " total:" + getTotalCount() + "/" + maxSize
+            + " created:" + getCreatedCount()
+            + " acquired:" + getAcquireCount()
+            + " timeouts:" + getTimeoutCount()
+            + " wait(avg/max us):" + getAverageWaitMicros() + "/" + getMaxWaitMicros();
+    }
+}
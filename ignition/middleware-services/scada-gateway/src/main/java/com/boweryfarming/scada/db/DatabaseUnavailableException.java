@@ -0,0 +1,12 @@
+package com.boweryfarming.scada.db;
+
+import java.sql.SQLException;
+
+/** Thrown without touching the database while its circuit breaker is open */
+public class DatabaseUnavailableException extends SQLException {
+    private static final long serialVersionUID = 1L;
+
+    public DatabaseUnavailableException(String reason) {
+        super(reason);
+    }
+}
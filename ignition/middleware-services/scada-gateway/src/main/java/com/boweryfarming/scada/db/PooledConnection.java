@@ -0,0 +1,72 @@
+package com.boweryfarming.scada.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connection borrowed from a {@link ConnectionPool}.
+ *
+ * Prepared statements are cached per connection and reused across borrows, so each statement is
+ * parsed and planned by the server once per physical connection. A connection is only used by one
+ * thread at a time, so the cache needs no synchronization.
+ */
+public class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+    private boolean broken = false;
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    /** Get a cached prepared statement for the sql, preparing it on first use */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /** Mark connection as unusable (e.g. after an I/O error) so it's dropped instead of pooled */
+    public void invalidate() {
+        broken = true;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    boolean isUsable() {
+        try {
+            return !broken && !connection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void closeQuietly() {
+        for (PreparedStatement stmt : statements.values()) {
+            try { stmt.close(); } catch (SQLException e) { /* ignore */ }
+        }
+        statements.clear();
+
+        try { connection.close(); } catch (SQLException e) { /* ignore */ }
+    }
+
+    /** Return connection to the pool */
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+}
@@ -1,5 +1,8 @@
 package com.boweryfarming.scada.settings;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.inductiveautomation.ignition.gateway.localdb.persistence.Category;
 import com.inductiveautomation.ignition.gateway.localdb.persistence.StringField;
 import com.inductiveautomation.ignition.gateway.localdb.persistence.LongField;
@@ -49,6 +52,64 @@ public class BoweryScadaDeviceSettings extends PersistentRecord {
      */
     public static final StringField FARM_CODE = new StringField(META, "FarmCode", SFieldFlags.SMANDATORY);
 
+    /**
+     * Conveyor lines driven by this gateway e.g., "1,2,3"; each line gets a [Public]Conveyance/Bin/{line} tag tree
+     */
+    public static final String DEFAULT_CONVEYOR_LINES = "1";
+    public static final StringField CONVEYOR_LINES =
+            new StringField(META, "ConveyorLines", SFieldFlags.SMANDATORY).setDefault(DEFAULT_CONVEYOR_LINES);
+
+    /**
+     * Time from QR code scan until the routing instruction must be written to the PLC
+     */
+    public static final long DEFAULT_ROUTING_DEADLINE_MS = 500;
+    public static final LongField ROUTING_DEADLINE_MS =
+            new LongField(META, "RoutingDeadlineMs", SFieldFlags.SMANDATORY).setDefault(DEFAULT_ROUTING_DEADLINE_MS);
+
+    /**
+     * Per line overrides of the routing deadline e.g., "1=400,2=600"
+     */
+    public static final StringField LINE_ROUTING_DEADLINES =
+            new StringField(META, "LineRoutingDeadlines").setDefault("");
+
+    /**
+     * Recent values kept in memory per public tag for the tag_history command, 0 to disable
+     */
+    public static final long DEFAULT_TAG_HISTORY_SIZE = 256;
+    public static final LongField TAG_HISTORY_SIZE =
+            new LongField(META, "TagHistorySize").setDefault(DEFAULT_TAG_HISTORY_SIZE);
+
+    /**
+     * Notification filters of public tags e.g.,
+     * "[Public]Conveyance/Bin/1/Weigh/Weight=deadband:5,interval:200;[Public]Conveyance/Bin/1/ACC=coalesce"
+     */
+    public static final StringField TAG_FILTERS =
+            new StringField(META, "TagFilters").setDefault("");
+
+    /**
+     * Simulator polls the routing Present node at this interval in addition to observing writes
+     * to it, 0 to only observe writes
+     */
+    public static final LongField SIMULATOR_ROUTING_POLL_MS =
+            new LongField(META, "SimulatorRoutingPollMs").setDefault(0L);
+
+    /**
+     * Time source of the conveyor and simulator services, "wall" or "virtual" for accelerated soak tests
+     */
+    public static final String CLOCK_MODE_WALL = "wall";
+    public static final String CLOCK_MODE_VIRTUAL = "virtual";
+    public static final StringField CLOCK_MODE =
+            new StringField(META, "ClockMode").setDefault(CLOCK_MODE_WALL);
+
+    /**
+     * Real time the services must be idle before the virtual clock jumps ahead. Scans and routing
+     * decisions hold the clock while they pass through Ignition, this only covers short hand-offs
+     * between threads
+     */
+    public static final long DEFAULT_VIRTUAL_CLOCK_SETTLE_MS = 10;
+    public static final LongField VIRTUAL_CLOCK_SETTLE_MS =
+            new LongField(META, "VirtualClockSettleMs").setDefault(DEFAULT_VIRTUAL_CLOCK_SETTLE_MS);
+
     /**
      * Each category appears below the General category in the Gateway when creating a new driver.
      * 
@@ -59,7 +120,7 @@ public class BoweryScadaDeviceSettings extends PersistentRecord {
      * The order number determines the order in which multiple categories are displayed on the page.
      */
     public static final Category CATEGORY =
-            new Category("SimulatorDeviceSettings.SettingsCategory", 1001).include(FARM_CODE);
+            new Category("SimulatorDeviceSettings.SettingsCategory", 1001).include(FARM_CODE, CONVEYOR_LINES, ROUTING_DEADLINE_MS, LINE_ROUTING_DEADLINES, TAG_HISTORY_SIZE, TAG_FILTERS, SIMULATOR_ROUTING_POLL_MS, CLOCK_MODE, VIRTUAL_CLOCK_SETTLE_MS);
 
     static {
         // Hides some generic ReferenceField settings that are not needed in our driver example.
@@ -84,4 +145,128 @@ public class BoweryScadaDeviceSettings extends PersistentRecord {
         setString(FARM_CODE, farmCode);
     }
 
+    public String getConveyorLines() {
+        return getString(CONVEYOR_LINES);
+    }
+
+    public void setConveyorLines(String lines) {
+        setString(CONVEYOR_LINES, lines);
+    }
+
+    /**
+     * Get the configured conveyor line ids
+     *
+     * @return line ids in configured order without duplicates, line 1 if none is configured
+     */
+    public List<Integer> getConveyorLineIds() {
+        List<Integer> lineIds = new ArrayList<Integer>();
+        String lines = getConveyorLines();
+        if (lines != null) {
+            for (String item : lines.split(",")) {
+                try {
+                    int lineId = Integer.parseInt(item.trim());
+                    if (lineId > 0 && !lineIds.contains(lineId)) {
+                        lineIds.add(lineId);
+                    }
+                } catch (NumberFormatException e) {
+                    // skip malformed item
+                }
+            }
+        }
+
+        if (lineIds.isEmpty()) {
+            lineIds.add(Integer.parseInt(DEFAULT_CONVEYOR_LINES));
+        }
+        return lineIds;
+    }
+
+    public long getRoutingDeadlineMs() {
+        Long deadline = getLong(ROUTING_DEADLINE_MS);
+        return deadline == null ? DEFAULT_ROUTING_DEADLINE_MS : deadline;
+    }
+
+    public void setRoutingDeadlineMs(long deadlineMs) {
+        setLong(ROUTING_DEADLINE_MS, deadlineMs);
+    }
+
+    public String getLineRoutingDeadlines() {
+        return getString(LINE_ROUTING_DEADLINES);
+    }
+
+    public void setLineRoutingDeadlines(String deadlines) {
+        setString(LINE_ROUTING_DEADLINES, deadlines);
+    }
+
+    /**
+     * Get the routing deadline of a line
+     *
+     * @param lineId conveyor line number
+     * @return per line override if configured, otherwise the default routing deadline
+     */
+    public long getRoutingDeadlineMs(int lineId) {
+        String overrides = getLineRoutingDeadlines();
+        if (overrides != null) {
+            for (String item : overrides.split(",")) {
+                String[] kv = item.trim().split("=");
+                if (kv.length == 2 && kv[0].trim().equals(String.valueOf(lineId))) {
+                    try {
+                        return Long.parseLong(kv[1].trim());
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        return getRoutingDeadlineMs();
+    }
+
+    public int getTagHistorySize() {
+        Long size = getLong(TAG_HISTORY_SIZE);
+        return (int) Math.max(0, size == null ? DEFAULT_TAG_HISTORY_SIZE : size);
+    }
+
+    public void setTagHistorySize(int size) {
+        setLong(TAG_HISTORY_SIZE, (long) size);
+    }
+
+    public String getTagFilters() {
+        return getString(TAG_FILTERS);
+    }
+
+    public void setTagFilters(String filters) {
+        setString(TAG_FILTERS, filters);
+    }
+
+    public long getSimulatorRoutingPollMs() {
+        Long pollMs = getLong(SIMULATOR_ROUTING_POLL_MS);
+        return pollMs == null ? 0 : Math.max(0, pollMs);
+    }
+
+    public void setSimulatorRoutingPollMs(long pollMs) {
+        setLong(SIMULATOR_ROUTING_POLL_MS, pollMs);
+    }
+
+    public String getClockMode() {
+        String mode = getString(CLOCK_MODE);
+        return mode == null || mode.trim().isEmpty() ? CLOCK_MODE_WALL : mode.trim().toLowerCase();
+    }
+
+    public void setClockMode(String mode) {
+        setString(CLOCK_MODE, mode);
+    }
+
+    public boolean isVirtualClock() {
+        return CLOCK_MODE_VIRTUAL.equals(getClockMode());
+    }
+
+    public long getVirtualClockSettleMs() {
+        Long settleMs = getLong(VIRTUAL_CLOCK_SETTLE_MS);
+        return settleMs == null ? DEFAULT_VIRTUAL_CLOCK_SETTLE_MS : Math.max(0, settleMs);
+    }
+
+    public void setVirtualClockSettleMs(long settleMs) {
+        setLong(VIRTUAL_CLOCK_SETTLE_MS, settleMs);
+    }
+
 }
@@ -0,0 +1,270 @@
+package com.boweryfarming.scada.simulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.boweryfarming.scada.ScadaClock;
+
+import org.slf4j.Logger;
+
+/**
+ * Synthesizes bins across simulated lines at a target rate for sizing gateways.
+ *
+ * Bins are spread round robin over the lines, labels are either sampled from the routing entries
+ * the gateway knows (routed) or made up (no routing entry). The simulator reports back scans,
+ * routing instructions and arrivals at the diverter; the report shows the achieved throughput and
+ * the percentiles of the scan to instruction latency. Per line scan spacing of the simulator still
+ * applies, so a target rate above lines / spacing isn't reached. Rates and latencies are on the
+ * {@link ScadaClock}, so a virtual clock runs long loads faster than real time.
+ */
+class LoadGenerator implements Runnable {
+    enum Arrival { CONSTANT, POISSON, BURSTY }
+
+    /** bins of a burst arrive back to back */
+    static final int BURST_SIZE = 10;
+    static final int MAX_LATENCY_SAMPLES = 1 << 20;
+    static final int MIN_LATENCY_SAMPLES = 1024;
+    static final int MIN_WEIGHT = 500;
+    static final int MAX_WEIGHT = 5000;
+
+    interface Scanner {
+        void scan(int lineId, String label, int weight);
+    }
+
+    private final List<Integer> lineIds;
+    private final double binsPerSecond;
+    private final long durationMs;
+    private final Arrival arrival;
+    private final double routedRatio;
+    private final List<String> routedLabels;
+    private final Scanner scanner;
+    private final ScadaClock clock;
+    private final Logger logger;
+    private final Random random = new Random();
+    private final Thread thread;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    /** last label generated per line (index of lineIds), only used on the generator thread */
+    private final String[] lastLabels;
+    private volatile boolean stopped = false;
+    private volatile long startNanos = 0;
+    private volatile long endNanos = 0;
+
+    final AtomicLong generatedCount = new AtomicLong(0);
+    final AtomicLong routedCount = new AtomicLong(0);
+    final AtomicLong scannedCount = new AtomicLong(0);
+    final AtomicLong droppedCount = new AtomicLong(0);
+    final AtomicLong instructedCount = new AtomicLong(0);
+    final AtomicLong noInstructionCount = new AtomicLong(0);
+    final AtomicLong supersededCount = new AtomicLong(0);
+    final AtomicLong arrivedCount = new AtomicLong(0);
+    final AtomicLong kickoutCount = new AtomicLong(0);
+
+    // guarded by this, sized for the expected bins and grown up to MAX_LATENCY_SAMPLES
+    private long[] latencies;
+    private int latencyCount = 0;
+
+    /**
+     * @param routedRatio share of bins labeled with a routed label, 0 to 1
+     * @param routedLabels labels with a routing entry, bins are all unrouted when empty
+     */
+    LoadGenerator(List<Integer> lineIds, double binsPerSecond, long durationMs, Arrival arrival,
+            double routedRatio, List<String> routedLabels, Scanner scanner,
+            ScadaClock clock, Logger logger) {
+        if (lineIds.isEmpty() || binsPerSecond <= 0 || durationMs <= 0 || routedRatio < 0 || routedRatio > 1) {
+            throw new IllegalArgumentException("Invalid load lines:" + lineIds + " rate:" + binsPerSecond
+                    + " duration ms:" + durationMs + " routed:" + routedRatio);
+        }
+        this.lineIds = new ArrayList<Integer>(lineIds);
+        this.lastLabels = new String[lineIds.size()];
+        this.binsPerSecond = binsPerSecond;
+        this.durationMs = durationMs;
+        this.arrival = arrival;
+        this.routedRatio = routedRatio;
+        this.routedLabels = routedLabels;
+        this.scanner = scanner;
+        this.clock = clock;
+        this.logger = logger;
+        double expectedBins = binsPerSecond * durationMs / 1000.0;
+        this.latencies = new long[(int) Math.max(MIN_LATENCY_SAMPLES,
+                    Math.min(MAX_LATENCY_SAMPLES, Math.ceil(expectedBins)))];
+        this.thread = new Thread(this, "SimulatorLoad");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    @Override
+    public void run() {
+        startNanos = clock.nanoTime();
+        long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        long next = startNanos;
+        long n = 0;
+        logger.info("Load run " + runId + " started " + describe());
+
+        while (!stopped && next < deadline) {
+            long wait;
+            while ((wait = next - clock.nanoTime()) > 0 && !stopped) {
+                try {
+                    clock.sleep(wait, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ie) {
+                    // stopped
+                }
+            }
+            if (stopped) {
+                break;
+            }
+
+            generate(n);
+            next += gapNanos(n++);
+        }
+
+        endNanos = clock.nanoTime();
+        logger.info("Load run " + runId + " finished\n" + report());
+    }
+
+    private long gapNanos(long n) {
+        double meanNanos = TimeUnit.SECONDS.toNanos(1) / binsPerSecond;
+        switch (arrival) {
+            case POISSON:
+                return (long) (-Math.log(1 - random.nextDouble()) * meanNanos);
+            case BURSTY:
+                // a burst every BURST_SIZE bins keeps the average rate
+                return (n + 1) % BURST_SIZE == 0 ? (long) (BURST_SIZE * meanNanos) : 0;
+            default:
+                return (long) meanNanos;
+        }
+    }
+
+    private void generate(long n) {
+        int line = (int) (n % lineIds.size());
+        int lineId = lineIds.get(line);
+        String label = routedLabel(lastLabels[line]);
+        boolean routed = label != null;
+        if (!routed) {
+            label = "LOAD-" + runId + "-" + n;
+        }
+        lastLabels[line] = label;
+        int weight = MIN_WEIGHT + random.nextInt(MAX_WEIGHT - MIN_WEIGHT);
+
+        generatedCount.incrementAndGet();
+        if (routed) {
+            routedCount.incrementAndGet();
+        }
+        try {
+            scanner.scan(lineId, label, weight);
+        } catch (RuntimeException e) {
+            droppedCount.incrementAndGet();
+            logger.warn("Load run " + runId + " failed to scan " + label + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Routed label other than the last one of the line, the gateway isn't notified of an unchanged
+     * QR code and the bin would never be routed
+     * @return null for an unrouted bin
+     */
+    private String routedLabel(String last) {
+        if (routedLabels.isEmpty() || random.nextDouble() >= routedRatio) {
+            return null;
+        }
+        int size = routedLabels.size();
+        int index = random.nextInt(size);
+        if (!routedLabels.get(index).equals(last)) {
+            return routedLabels.get(index);
+        }
+        if (size == 1) {
+            return null;
+        }
+        // any other label with the same odds
+        return routedLabels.get((index + 1 + random.nextInt(size - 1)) % size);
+    }
+
+    void recordScan() {
+        scannedCount.incrementAndGet();
+    }
+
+    void recordDropped() {
+        droppedCount.incrementAndGet();
+    }
+
+    /** @param present routing instruction data present, 0 when the gateway had no instruction */
+    synchronized void recordInstruction(long latencyNanos, int present) {
+        if (present == 0) {
+            noInstructionCount.incrementAndGet();
+        } else {
+            instructedCount.incrementAndGet();
+        }
+        if (latencyCount == latencies.length && latencies.length < MAX_LATENCY_SAMPLES) {
+            // random arrivals may run over the expected count
+            latencies = Arrays.copyOf(latencies, Math.min(MAX_LATENCY_SAMPLES, latencies.length * 2));
+        }
+        if (latencyCount < latencies.length) {
+            latencies[latencyCount++] = latencyNanos;
+        }
+    }
+
+    /** the gateway won't route a scanned bin, see SimulatorService.supersede */
+    void recordSuperseded() {
+        supersededCount.incrementAndGet();
+    }
+
+    void recordArrival(boolean kickout) {
+        arrivedCount.incrementAndGet();
+        if (kickout) {
+            kickoutCount.incrementAndGet();
+        }
+    }
+
+    private String describe() {
+        return "lines:" + lineIds + " arrival:" + arrival + " target bins/s:" + binsPerSecond
+            + " duration s:" + TimeUnit.MILLISECONDS.toSeconds(durationMs)
+            + " routed ratio:" + routedRatio + " routed labels:" + routedLabels.size();
+    }
+
+    String report() {
+        long end = endNanos != 0 ? endNanos : clock.nanoTime();
+        double elapsedSeconds = startNanos == 0 ? 0 : (end - startNanos) / 1e9;
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(latencies, latencyCount);
+        }
+        Arrays.sort(sorted);
+
+        return "load run " + runId + (endNanos == 0 ? " running " : " done ") + describe() + "\n"
+            + String.format("elapsed s:%.1f generated:%d (routed:%d) scanned:%d dropped:%d achieved bins/s:%.2f%n",
+                    elapsedSeconds, generatedCount.get(), routedCount.get(), scannedCount.get(), droppedCount.get(),
+                    elapsedSeconds == 0 ? 0 : scannedCount.get() / elapsedSeconds)
+            + "instructed:" + instructedCount.get() + " no instruction:" + noInstructionCount.get()
+            + " superseded:" + supersededCount.get()
+            + " arrived:" + arrivedCount.get() + " kickout:" + kickoutCount.get() + "\n"
+            + "scan to instruction ms p50/p90/p99/max:"
+            + millis(percentile(sorted, 50)) + "/" + millis(percentile(sorted, 90)) + "/"
+            + millis(percentile(sorted, 99)) + "/" + millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+}
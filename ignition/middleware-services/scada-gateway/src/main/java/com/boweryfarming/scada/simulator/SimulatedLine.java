@@ -0,0 +1,126 @@
+package com.boweryfarming.scada.simulator;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import com.boweryfarming.scada.ScadaClock;
+
+import org.eclipse.milo.opcua.sdk.server.nodes.AttributeObserver;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.slf4j.Logger;
+
+/**
+ * Simulated devices of one conveyor line. Line 1 keeps the original node layout at the device
+ * root, other lines get the same tree under Bin/{line id}/.
+ */
+class SimulatedLine {
+    final int lineId;
+    /** prefix of the node paths, node ids and Simulator tag paths of the line */
+    final String prefix;
+    final Map<String, UaVariableNode> nodes = new HashMap<String, UaVariableNode>();
+    private final Logger logger;
+    /** consumes routing instructions written to the Present node */
+    AttributeObserver routingPresentObserver;
+
+    // Bins between the scanner and the diverter in scan order. Only accessed by Task runnables
+    // that run in a single thread so it won't need addtional synchronization
+    final ArrayDeque<SimulatorService.BinRoutingTaskContext> inFlightBins =
+        new ArrayDeque<SimulatorService.BinRoutingTaskContext>();
+    int accCounter = 0; // TODO: not sure at this point what's appropriate ACC tag value
+    /** guarded by this */
+    long nextScanAtNanos = 0;
+    /** QR code the gateway was last notified of, routing instructions are for its bin */
+    volatile String notifiedLabel;
+    /** QR codes set on the scanner node the gateway hasn't been notified of, guarded by itself */
+    private final ArrayDeque<PendingScan> pendingScans = new ArrayDeque<PendingScan>();
+
+    private static class PendingScan {
+        final String label;
+        final ScadaClock.Hold hold;
+
+        PendingScan(String label, ScadaClock.Hold hold) {
+            this.label = label;
+            this.hold = hold;
+        }
+    }
+
+    SimulatedLine(int lineId, Logger logger) {
+        this.lineId = lineId;
+        this.prefix = lineId == 1 ? "" : "Bin/" + lineId + "/";
+        this.logger = logger;
+    }
+
+    /** Node path of a SimulatorTags path e.g., Bin/2/Bin Data/ACC */
+    String nodePath(String tag) {
+        return prefix + tag;
+    }
+
+    /** Simulator provider tag path e.g., [Simulator]Bin/2/Bin Data/ACC */
+    String tagPath(String tag) {
+        return SimulatorTags.getTagPath(nodePath(tag));
+    }
+
+    Optional<Object> getNodeValue(String tag) {
+        UaVariableNode node = nodes.get(tag);
+        if (node == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(node.getValue().getValue().getValue());
+    }
+
+    void setNodeValue(String tag, Object value) {
+        UaVariableNode node = nodes.get(tag);
+        if (node != null) {
+            node.setValue(new DataValue(new Variant(value)));
+        } else {
+            logger.error(String.format("Node %s not found. failed to set value", nodePath(tag)));
+        }
+    }
+
+    /**
+     * Set the QR code of the scanner node, the hold is released once the gateway is notified of it
+     * (see {@link #scanNotified(Object)}) or right away if the value doesn't change
+     * @return false if the value didn't change, the gateway isn't notified of the scan then
+     */
+    boolean setScannedLabel(String label, ScadaClock.Hold hold) {
+        if (Objects.equals(getNodeValue(SimulatorTags.BIN_DATA_PARSED_LABEL).orElse(null), label)) {
+            setNodeValue(SimulatorTags.BIN_DATA_PARSED_LABEL, label);
+            hold.release();
+            return false;
+        }
+
+        synchronized (pendingScans) {
+            pendingScans.add(new PendingScan(label, hold));
+        }
+        setNodeValue(SimulatorTags.BIN_DATA_PARSED_LABEL, label);
+        return true;
+    }
+
+    /**
+     * Gateway was notified of the QR code, release the scans up to it; older ones were overwritten
+     * before they were seen
+     */
+    void scanNotified(Object value) {
+        notifiedLabel = value == null ? null : value.toString();
+        synchronized (pendingScans) {
+            if (pendingScans.stream().noneMatch(scan -> scan.label.equals(value))) {
+                return;
+            }
+            PendingScan scan;
+            do {
+                scan = pendingScans.poll();
+                scan.hold.release();
+            } while (!scan.label.equals(value));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "simulated line " + lineId + " in flight:" + inFlightBins.size() + " acc:" + accCounter;
+    }
+}
@@ -1,25 +1,33 @@
 package com.boweryfarming.scada.simulator;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import com.boweryfarming.scada.AbstractScadaService;
+import com.boweryfarming.scada.ScadaClock;
+import com.boweryfarming.scada.ScadaScheduler;
+import com.boweryfarming.scada.SerialTaskEngine;
 import com.boweryfarming.scada.ServiceContext;
+import com.boweryfarming.scada.tags.PublicTagEventListener;
+import com.boweryfarming.scada.tags.PublicTagManagerService;
+import com.boweryfarming.scada.tags.PublicTagUtil;
 import com.google.gson.Gson;
 import com.inductiveautomation.ignition.common.model.values.QualityCode;
 import com.inductiveautomation.ignition.common.tags.config.CollisionPolicy;
@@ -32,9 +40,11 @@ import com.inductiveautomation.ignition.common.tags.paths.parser.TagPathParser;
 
 import org.eclipse.milo.opcua.sdk.core.AccessLevel;
 import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.nodes.AttributeObserver;
 import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
 import org.eclipse.milo.opcua.sdk.server.nodes.UaNode;
 import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
 import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
 import org.eclipse.milo.opcua.stack.core.Identifiers;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
@@ -49,11 +59,15 @@ public class SimulatorService extends AbstractScadaService {
     private final Logger logger = LoggerFactory.getLogger(getClass());
     Gson gson = new Gson();
 
-    private Map<String, UaVariableNode> variableNodes = new HashMap<String, UaVariableNode>();
-    private final Thread taskThread;
-    private final TaskRunnable taskRunnable;
+    /** Simulated devices per configured conveyor line, see ConveyorLines setting */
+    final Map<Integer, SimulatedLine> lines = new LinkedHashMap<Integer, SimulatedLine>();
 
-    interface Task {
+    /** Pending simulator tasks, producers wait for a slot rather than losing bins or instructions */
+    static final int TASK_QUEUE_CAPACITY = 1024;
+    static final long TASK_ENGINE_CLOSE_TIMEOUT_MS = 3000;
+    private final SerialTaskEngine taskEngine;
+
+    interface Task extends Runnable {
         public String getName();
         public boolean prepare();
         public void run();
@@ -98,7 +112,10 @@ public class SimulatorService extends AbstractScadaService {
     class BinRoutingTaskContext {
         private final RawBinLabel rawBinLabel;
         Optional<OsInstruction> osInstruction = Optional.empty();
+        /** the gateway won't route the bin, a newer scan overtook it or its QR code didn't change */
+        boolean superseded = false;
         int weight = 0;
+        final long scannedAtNanos = clock.nanoTime();
 
         public BinRoutingTaskContext(RawBinLabel rawBinLabel) {
             this.rawBinLabel = rawBinLabel;
@@ -125,15 +142,34 @@ public class SimulatorService extends AbstractScadaService {
         }
     }
 
-    // This task context is only used/accessed by Task runnables that run in a
-    // single thread so it won't need addtional synchronization
-    Optional<BinRoutingTaskContext> binRoutingTaskContext = Optional.empty();
-    int accCounter = 0; // TODO: not sure at this point what's appropriate ACC tag value
+    /** Max bins on the simulated conveyor between the scanner and the diverter */
+    static final int MAX_IN_FLIGHT_BINS = 64;
+    static final long DEFAULT_TRANSIT_MS = 2000;
+    static final long DEFAULT_SPACING_MS = 500;
+
+    /** time from the scanner to the diverter, the bin is weighed and routed on arrival */
+    volatile long transitMs = DEFAULT_TRANSIT_MS;
+    /** min time between two scans, scans arriving sooner wait for the gap */
+    volatile long spacingMs = DEFAULT_SPACING_MS;
+    /** time of the simulated conveyor, shared with the conveyor service */
+    private final ScadaClock clock;
+    /** moves scans and bins along the conveyor, the tasks themselves run on the task thread */
+    private final ScadaScheduler conveyorTimer;
+    /** load run in progress or the last one, null before the first run */
+    private volatile LoadGenerator loadGenerator;
+    /** trace replay in progress or the last one, null before the first replay */
+    private volatile TraceReplay traceReplay;
+    /** track the scans the gateway is notified of, and release the clock held for them */
+    private final Map<String, PublicTagEventListener> scanListeners = new LinkedHashMap<String, PublicTagEventListener>();
 
     class ScanBinLabelTask implements Task {
+        SimulatedLine line;
         RawBinLabel rawBinLabel;
         int weight;
-        ScanBinLabelTask(int farmId, String side, String label, int weight) {
+        /** holds the clock from the scan until the gateway is notified of it */
+        ScadaClock.Hold hold;
+        ScanBinLabelTask(SimulatedLine line, int farmId, String side, String label, int weight) {
+            this.line = line;
             this.rawBinLabel = new RawBinLabel(farmId, side, label, "bin");
             this.weight = weight;
         }
@@ -145,28 +181,62 @@ public class SimulatorService extends AbstractScadaService {
 
         @Override
         public boolean prepare() {
-            logger.info(String.format("prepare (scan): 0x%x", binRoutingTaskContext.hashCode()));
-            if(binRoutingTaskContext.isPresent()) {
-                logger.warn("already ongoing routing task");
-                return false;
-            }
-
+            hold = clock.hold("scan line " + line.lineId);
             return true;
         }
 
         @Override
         public void run() {
-            logger.info(String.format("set context : 0x%x", binRoutingTaskContext.hashCode()));
-            binRoutingTaskContext = Optional.of(new BinRoutingTaskContext(rawBinLabel));
-            binRoutingTaskContext.get().setWeight(weight);
-            setNodeValue(SimulatorTags.BIN_DATA_PARSED_LABEL, rawBinLabel.label);
+            LoadGenerator load = loadGenerator;
+            if (line.inFlightBins.size() >= MAX_IN_FLIGHT_BINS) {
+                logger.warn("line " + line.lineId + " conveyor full, dropped bin " + rawBinLabel.label
+                        + " in flight:" + line.inFlightBins.size());
+                if (load != null) {
+                    load.recordDropped();
+                }
+                hold.release();
+                return;
+            }
+
+            BinRoutingTaskContext bin = new BinRoutingTaskContext(rawBinLabel);
+            bin.setWeight(weight);
+            line.inFlightBins.add(bin);
+            logger.info(String.format("line %d scanned bin 0x%x in flight:%d",
+                        line.lineId, bin.hashCode(), line.inFlightBins.size()));
+            if (load != null) {
+                load.recordScan();
+            }
+            if (!line.setScannedLabel(rawBinLabel.label, hold)) {
+                supersede(line, bin, "QR code unchanged");
+            }
+
+            conveyorTimer.schedule(() -> enqueue(new BinArrivalTask(line, bin)),
+                    transitMs, TimeUnit.MILLISECONDS);
         }
     }
 
+    /** The gateway won't route the bin, it reaches the diverter without an instruction */
+    private void supersede(SimulatedLine line, BinRoutingTaskContext bin, String reason) {
+        bin.superseded = true;
+        logger.warn(String.format("line %d bin 0x%x %s won't be routed: %s", line.lineId, bin.hashCode(),
+                    bin.getRawBinLabel().label, reason));
+        LoadGenerator load = loadGenerator;
+        if (load != null) {
+            load.recordSuperseded();
+        }
+    }
+
+    /**
+     * Routing instruction of the newest bin in flight with the QR code the gateway was last notified
+     * of. Like the gateway, which drops the decision of a scan overtaken by a newer one, older bins
+     * still waiting for an instruction are given up then.
+     */
     class BinRoutingTask implements Task {
+        SimulatedLine line;
         OsInstruction osInstruction;
 
-        BinRoutingTask(OsInstruction osInstruction) {
+        BinRoutingTask(SimulatedLine line, OsInstruction osInstruction) {
+            this.line = line;
             this.osInstruction = osInstruction;
         }
 
@@ -177,110 +247,134 @@ public class SimulatorService extends AbstractScadaService {
 
         @Override
         public boolean prepare() {
-            if(!binRoutingTaskContext.isPresent()) {
-                logger.warn("no ongoing routing task");
-                return false;
-            }
-
-            binRoutingTaskContext.get().setOsInstruction(this.osInstruction);
-
             return true;
         }
 
         @Override
         public void run() {
-            RawBinLabel binLabel = binRoutingTaskContext.get().getRawBinLabel();
-            Optional<OsInstruction> instruction = binRoutingTaskContext.get().getOsInstruction();
-            logger.info(String.format("raw bin label: %s", gson.toJson(binLabel)));
-            setNodeValue(SimulatorTags.CHECK_WEIGH_INFO, gson.toJson(binLabel));
-
-            setNodeValue(SimulatorTags.CHECK_WEIGH_CAPTURED_WEIGHT, binRoutingTaskContext.get().getWeight());
-
-            DateTime currTime = new DateTime();
-            setNodeValue(SimulatorTags.CHECK_WEIGH_CAPTURED_DATETIME, currTime);
+            String label = line.notifiedLabel;
+            BinRoutingTaskContext bin = null;
+            Iterator<BinRoutingTaskContext> newestFirst = line.inFlightBins.descendingIterator();
+            while (newestFirst.hasNext()) {
+                BinRoutingTaskContext inFlight = newestFirst.next();
+                if (!inFlight.superseded && inFlight.getRawBinLabel().label.equals(label)) {
+                    bin = inFlight;
+                    break;
+                }
+            }
+            if (bin == null || bin.getOsInstruction().isPresent()) {
+                logger.warn("line " + line.lineId + " no bin in flight waiting for the routing instruction of "
+                        + label + ", in flight:" + line.inFlightBins.size());
+                return;
+            }
 
-            if (instruction.isEmpty()) {
-                setNodeValue(SimulatorTags.BIN_DATA_DESTINATION, "kickout");
-                setNodeValue(SimulatorTags.BIN_DATA_KICKOUT_REASON, KickoutReason.NO_INSTRUCTION);
-            } else if (instruction.get().dataPresent == 0) {
-                setNodeValue(SimulatorTags.BIN_DATA_DESTINATION, "kickout");
-                setNodeValue(SimulatorTags.BIN_DATA_KICKOUT_REASON, KickoutReason.NO_INSTRUCTION);
-            } else if (!validDestinations.contains(instruction.get().desiredDestination)) {
-                setNodeValue(SimulatorTags.BIN_DATA_DESTINATION, "kickout");
-                setNodeValue(SimulatorTags.BIN_DATA_KICKOUT_REASON, KickoutReason.INVALID_INSTRUCTION);
-            } else {
-                setNodeValue(SimulatorTags.BIN_DATA_DESTINATION, "continue");
-                setNodeValue(SimulatorTags.BIN_DATA_KICKOUT_REASON, KickoutReason.VALID_INSTRUCTION);
+            while (newestFirst.hasNext()) {
+                BinRoutingTaskContext older = newestFirst.next();
+                if (!older.superseded && !older.getOsInstruction().isPresent()) {
+                    supersede(line, older, "overtaken by " + label);
+                }
             }
 
-            accCounter++;
-            setNodeValue(SimulatorTags.BIN_DATA_ACC, accCounter);
+            bin.setOsInstruction(osInstruction);
+            long latencyNanos = clock.nanoTime() - bin.scannedAtNanos;
+            logger.info(String.format("line %d routing instruction of bin 0x%x after %dms", line.lineId,
+                        bin.hashCode(), TimeUnit.NANOSECONDS.toMillis(latencyNanos)));
 
-            logger.info(String.format("clr context : 0x%x acc:%d",
-                        binRoutingTaskContext.hashCode(), accCounter));
-            binRoutingTaskContext = Optional.empty();
+            LoadGenerator load = loadGenerator;
+            if (load != null) {
+                load.recordInstruction(latencyNanos, osInstruction.dataPresent);
+            }
         }
     }
 
-    class TaskRunnable implements Runnable {
-        BlockingQueue<Task> queue = new LinkedBlockingQueue<Task>();
-        boolean aborted = false;
+    /** Bin reached the diverter, it's weighed and routed by its instruction if any */
+    class BinArrivalTask implements Task {
+        SimulatedLine line;
+        BinRoutingTaskContext bin;
 
-        public TaskRunnable() {
+        BinArrivalTask(SimulatedLine line, BinRoutingTaskContext bin) {
+            this.line = line;
+            this.bin = bin;
         }
 
-        public void abort() {
-            aborted = true;
-            queue.notifyAll();
+        @Override
+        public String getName() {
+            return "BinArrivalTask";
         }
 
-        /** Queue task to task thread
-         * @return false if conditions are not met to run task (task.preapre failed) otherwise 
-         *         true when task is successfully scheduled
-         */
-        public boolean enqueue(Task task) {
-            if (aborted) {
-                logger.error("task thread aborted..");
-                return false;
-            }
+        @Override
+        public boolean prepare() {
+            return true;
+        }
 
-            if (task.prepare()) {
-                try {
-                    queue.put(task);
-                    return true;
-                } catch (InterruptedException ie) {
-                    logger.warn(ie.getMessage());
+        @Override
+        public void run() {
+            if (line.inFlightBins.peek() != bin) {
+                // cleared or overtaken after a transit time change
+                if (!line.inFlightBins.remove(bin)) {
+                    return;
                 }
+            } else {
+                line.inFlightBins.poll();
             }
 
-            logger.warn(String.format("failed to schedule task %s", task.getName()));
-            return false;
-        }
+            RawBinLabel binLabel = bin.getRawBinLabel();
+            Optional<OsInstruction> instruction = bin.getOsInstruction();
+            logger.info(String.format("raw bin label: %s", gson.toJson(binLabel)));
+            line.setNodeValue(SimulatorTags.CHECK_WEIGH_INFO, gson.toJson(binLabel));
 
-        public void run() {
-            while (!aborted) {
-                try {
-                    Task nextTask = queue.poll(3, TimeUnit.SECONDS);
-                    if (nextTask == null) {
-                        continue;
-                    }
+            line.setNodeValue(SimulatorTags.CHECK_WEIGH_CAPTURED_WEIGHT, bin.getWeight());
 
-                    logger.info(String.format("Task started %s", nextTask.getName()));
-                    nextTask.run();
-                    logger.info(String.format("Task finished %s", nextTask.getName()));
-                } catch (InterruptedException ie) {
-                    logger.warn("task thread interrupted");
-                }
+            DateTime currTime = new DateTime(new Date(clock.currentTimeMillis()));
+            line.setNodeValue(SimulatorTags.CHECK_WEIGH_CAPTURED_DATETIME, currTime);
 
+            if (instruction.isEmpty()) {
+                line.setNodeValue(SimulatorTags.BIN_DATA_DESTINATION, "kickout");
+                line.setNodeValue(SimulatorTags.BIN_DATA_KICKOUT_REASON, KickoutReason.NO_INSTRUCTION);
+            } else if (instruction.get().dataPresent == 0) {
+                line.setNodeValue(SimulatorTags.BIN_DATA_DESTINATION, "kickout");
+                line.setNodeValue(SimulatorTags.BIN_DATA_KICKOUT_REASON, KickoutReason.NO_INSTRUCTION);
+            } else if (!validDestinations.contains(instruction.get().desiredDestination)) {
+                line.setNodeValue(SimulatorTags.BIN_DATA_DESTINATION, "kickout");
+                line.setNodeValue(SimulatorTags.BIN_DATA_KICKOUT_REASON, KickoutReason.INVALID_INSTRUCTION);
+            } else {
+                line.setNodeValue(SimulatorTags.BIN_DATA_DESTINATION, "continue");
+                line.setNodeValue(SimulatorTags.BIN_DATA_KICKOUT_REASON, KickoutReason.VALID_INSTRUCTION);
             }
-            logger.warn("task thread aborted");
+
+            line.accCounter++;
+            line.setNodeValue(SimulatorTags.BIN_DATA_ACC, line.accCounter);
+
+            logger.info(String.format("line %d routed bin 0x%x acc:%d in flight:%d",
+                        line.lineId, bin.hashCode(), line.accCounter, line.inFlightBins.size()));
+
+            LoadGenerator load = loadGenerator;
+            if (load != null) {
+                load.recordArrival(instruction.isEmpty() || instruction.get().dataPresent == 0
+                        || !validDestinations.contains(instruction.get().desiredDestination));
+            }
+        }
+    }
+
+    /** Queue task to task thread
+     * @return false if conditions are not met to run task (task.preapre failed) or the task
+     *         thread is closed, otherwise true when task is successfully scheduled
+     */
+    private boolean enqueue(Task task) {
+        if (task.prepare() && taskEngine.submit(task)) {
+            return true;
         }
+
+        logger.warn(String.format("failed to schedule task %s", task.getName()));
+        return false;
     }
 
     public SimulatorService (ServiceContext context) {
         super(context);
-        taskRunnable = new TaskRunnable();
-        taskThread = new Thread(taskRunnable);
+        taskEngine = new SerialTaskEngine("SimulatorTasks", TASK_QUEUE_CAPACITY,
+                SerialTaskEngine.OverflowPolicy.BLOCK, logger);
+        clock = context.getClock();
+        conveyorTimer = clock.newScheduler("SimulatorConveyor", 1);
     }
 
     @Override
@@ -304,53 +398,65 @@ public class SimulatorService extends AbstractScadaService {
                     Reference.Direction.INVERSE
                     ));
 
-        addNodes(rootNode);
+        for (int lineId : context.getSettings().getConveyorLineIds()) {
+            SimulatedLine line = new SimulatedLine(lineId, logger);
+            lines.put(lineId, line);
+            addNodes(rootNode, line);
+        }
         startRelays();
+        addScanListeners();
 
-        if(importSimulatorTags()) {
-            try {
-                configurePublicTag("[Public]Conveyance/Bin/1/QRCode",
-                        SimulatorTags.getTagPath(SimulatorTags.BIN_DATA_PARSED_LABEL));
-                configurePublicTag("[Public]Conveyance/Bin/1/Destination",
-                        SimulatorTags.getTagPath(SimulatorTags.BIN_DATA_DESTINATION));
-                configurePublicTag("[Public]Conveyance/Bin/1/Result",
-                        SimulatorTags.getTagPath(SimulatorTags.BIN_DATA_KICKOUT_REASON));
-                configurePublicTag("[Public]Conveyance/Bin/1/ACC",
-                        SimulatorTags.getTagPath(SimulatorTags.BIN_DATA_ACC));
-                configurePublicTag("[Public]Conveyance/Bin/1/Instruction/Present",
-                        SimulatorTags.getTagPath(SimulatorTags.BIN_ROUTING_PRESENT));
-                configurePublicTag("[Public]Conveyance/Bin/1/Instruction/DestinationId",
-                        SimulatorTags.getTagPath(SimulatorTags.BIN_ROUTING_DESTINATION_ID));
-                configurePublicTag("[Public]Conveyance/Bin/1/Instruction/DesiredDestination",
-                        SimulatorTags.getTagPath(SimulatorTags.BIN_ROUTING_DESTINATION));
-                configurePublicTag("[Public]Conveyance/Bin/1/Weigh/Info",
-                        SimulatorTags.getTagPath(SimulatorTags.CHECK_WEIGH_INFO));
-                configurePublicTag("[Public]Conveyance/Bin/1/Weigh/Weight",
-                        SimulatorTags.getTagPath(SimulatorTags.CHECK_WEIGH_CAPTURED_WEIGHT));
-                configurePublicTag("[Public]Conveyance/Bin/1/Weigh/DateTime",
-                        SimulatorTags.getTagPath(SimulatorTags.CHECK_WEIGH_CAPTURED_DATETIME));
-            } catch (Exception e) {
-                logger.error("failed to configure public tag: " + e.getMessage());
+        for (SimulatedLine line : lines.values()) {
+            if(importSimulatorTags(line)) {
+                try {
+                    configurePublicTags(line);
+                } catch (Exception e) {
+                    logger.error("failed to configure public tag of line " + line.lineId + ": " + e.getMessage());
+                }
+            } else {
+                // TODO: may retry?
             }
-        } else {
-            // TODO: may retry?
         }
-        taskThread.start();
+        taskEngine.start();
     }
 
     @Override
     public void onDestroy() {
+        stopLoad();
+        stopReplay();
         stopRelays();
+        removeScanListeners();
+        conveyorTimer.shutdownNow();
 
-        taskRunnable.abort();
-        try {
-            taskThread.join();
-        } catch (InterruptedException ie) {
-            logger.warn(String.format("failed to join task thread %s", ie.getMessage()));
+        taskEngine.close(TASK_ENGINE_CLOSE_TIMEOUT_MS);
+    }
+
+    private void addScanListeners() {
+        PublicTagManagerService publicTagManagerService =
+            (PublicTagManagerService) context.getService(ServiceContext.PUBTAG_MANAGER_SERVICE);
+        for (SimulatedLine line : lines.values()) {
+            String path = PublicTagUtil.binTagPath(line.lineId, PublicTagUtil.QR_CODE);
+            PublicTagEventListener listener = new PublicTagEventListener() {
+                public void onValueChanged(String path, Object value) {
+                    line.scanNotified(value);
+                }
+            };
+            publicTagManagerService.addEventListener(path, listener);
+            scanListeners.put(path, listener);
+        }
+    }
+
+    private void removeScanListeners() {
+        PublicTagManagerService publicTagManagerService =
+            (PublicTagManagerService) context.getService(ServiceContext.PUBTAG_MANAGER_SERVICE);
+        for (Map.Entry<String, PublicTagEventListener> entry : scanListeners.entrySet()) {
+            publicTagManagerService.removeEventListener(entry.getKey(), entry.getValue());
         }
+        scanListeners.clear();
     }
 
-    private boolean importSimulatorTags() {
+    /** Import the Simulator tags of the line, tags of lines other than 1 point at their Bin/{line} nodes */
+    private boolean importSimulatorTags(SimulatedLine line) {
         TagProvider tagProvider = this.context.getGatewayContext().getTagManager().getTagProvider("Simulator");
         try {
             InputStream is = getClass().getResourceAsStream("simulator_tags.json");
@@ -361,9 +467,13 @@ public class SimulatorService extends AbstractScadaService {
 
             byte[] bytes = is.readAllBytes();
             String s = new String(bytes, StandardCharsets.UTF_8);
+            if (!line.prefix.isEmpty()) {
+                s = s.replace("Simulator]", "Simulator]" + line.prefix);
+            }
             logger.info(s + " importing:" + bytes.length);
 
-            TagPath root = TagPathParser.parse("Simulator", "");
+            TagPath root = TagPathParser.parse("Simulator",
+                    line.prefix.isEmpty() ? "" : line.prefix.substring(0, line.prefix.length() - 1));
             List<QualityCode> res = tagProvider.importTagsAsync(
                     root,
                     s,
@@ -380,6 +490,26 @@ public class SimulatorService extends AbstractScadaService {
         return true;
     }
 
+    /** Public tag name and the Simulator tag it references */
+    private static final String[][] PUBLIC_TAG_SOURCES = {
+        { PublicTagUtil.QR_CODE, SimulatorTags.BIN_DATA_PARSED_LABEL },
+        { PublicTagUtil.DESTINATION, SimulatorTags.BIN_DATA_DESTINATION },
+        { PublicTagUtil.RESULT, SimulatorTags.BIN_DATA_KICKOUT_REASON },
+        { PublicTagUtil.ACC, SimulatorTags.BIN_DATA_ACC },
+        { PublicTagUtil.INSTRUCTION_PRESENT, SimulatorTags.BIN_ROUTING_PRESENT },
+        { PublicTagUtil.INSTRUCTION_DESTINATION_ID, SimulatorTags.BIN_ROUTING_DESTINATION_ID },
+        { PublicTagUtil.INSTRUCTION_DESIRED_DESTINATION, SimulatorTags.BIN_ROUTING_DESTINATION },
+        { PublicTagUtil.WEIGH_INFO, SimulatorTags.CHECK_WEIGH_INFO },
+        { PublicTagUtil.WEIGH_WEIGHT, SimulatorTags.CHECK_WEIGH_CAPTURED_WEIGHT },
+        { PublicTagUtil.WEIGH_DATETIME, SimulatorTags.CHECK_WEIGH_CAPTURED_DATETIME },
+    };
+
+    private void configurePublicTags(SimulatedLine line) throws Exception {
+        for (String[] source : PUBLIC_TAG_SOURCES) {
+            configurePublicTag(PublicTagUtil.binTagPath(line.lineId, source[0]), line.tagPath(source[1]));
+        }
+    }
+
     private void configurePublicTag(String path, String sourcePath) throws Exception {
         TagProvider tagProvider = this.context.getGatewayContext().getTagManager().getTagProvider("Public");
         TagPath tagPath= TagPathParser.parse(path);
@@ -402,28 +532,14 @@ public class SimulatorService extends AbstractScadaService {
         }
     }
 
-    private Optional<Object> getNodeValue(String nodeName) {
-        if (variableNodes.containsKey(nodeName)) {
-            return Optional.of(variableNodes.get(nodeName).getValue().getValue().getValue());
-        } else {
-            return Optional.ofNullable(null);
-        }
-    }
-
-    private void setNodeValue(String nodeName, Object value) {
-        if (variableNodes.containsKey(nodeName)) {
-            variableNodes.get(nodeName).setValue(new DataValue(new Variant(value)));
-        } else {
-            logger.error(String.format("Node %s not found. failed to set value", nodeName));
-        }
-    }
-
-    private void createNode(UaFolderNode dir, String uaPath, NodeId type, Object defaultValue) {
+    private void createNode(UaFolderNode dir, SimulatedLine line, String tag, NodeId type, Object defaultValue) {
+        String uaPath = line.nodePath(tag);
         try {
             ArrayList<String> nodes = new ArrayList<String>();
             Collections.addAll(nodes, uaPath.split("/"));
-            UaVariableNode node = createNode(dir, nodes, type, defaultValue);
-            variableNodes.put(uaPath, node);
+            String nodeId = line.prefix + nodes.get(nodes.size() - 1) + "/node";
+            UaVariableNode node = createNode(dir, "", nodes, nodeId, type, defaultValue);
+            line.nodes.put(tag, node);
             logger.info("Created UaNode: [" + uaPath + "]");
             return;
         } catch (Exception e) {
@@ -431,12 +547,19 @@ public class SimulatorService extends AbstractScadaService {
         }
     }
 
-    private UaVariableNode createNode(UaFolderNode dir, ArrayList<String> nodes, NodeId type, Object defaultValue) throws Exception {
+    /**
+     * @param dirPath path of dir from the device root, folder node ids are their path so Bin Data of
+     *        line 1 and Bin/2/Bin Data of line 2 don't collide
+     * @param nodeId id of the data node e.g., Bin/2/ACC/node, as addressed by the imported tags
+     */
+    private UaVariableNode createNode(UaFolderNode dir, String dirPath, ArrayList<String> nodes, String nodeId,
+            NodeId type, Object defaultValue) throws Exception {
         if (nodes.size() == 0) {
             throw new Exception(String.format("Failed to create node: empty"));
         }
         String name = nodes.get(0);
         nodes.remove(0);
+        String path = dirPath + name;
 
         Optional<UaNode> res = dir.findNode(context.getDeviceContext().qualifiedName(name));
         if (nodes.size() > 0) {
@@ -444,7 +567,7 @@ public class SimulatorService extends AbstractScadaService {
             if (res.isEmpty()) {
                 subdir = new UaFolderNode(
                         context.getNodeContext(),
-                        context.getDeviceContext().nodeId(name),
+                        context.getDeviceContext().nodeId(path),
                         context.getDeviceContext().qualifiedName(name),
                         new LocalizedText(name));
 
@@ -455,12 +578,12 @@ public class SimulatorService extends AbstractScadaService {
             }
 
             // iterate rest of the path
-            return createNode(subdir, nodes, type, defaultValue);
+            return createNode(subdir, path + "/", nodes, nodeId, type, defaultValue);
         } else {
             // data node
             if (res.isEmpty()) {
                 UaVariableNode newNode = UaVariableNode.builder(context.getNodeContext())
-                    .setNodeId(context.getDeviceContext().nodeId(String.format("%s/node", name)))
+                    .setNodeId(context.getDeviceContext().nodeId(nodeId))
                     .setBrowseName(context.getDeviceContext().qualifiedName(name))
                     .setDisplayName(new LocalizedText(name))
                     .setDataType(type)
@@ -479,83 +602,114 @@ public class SimulatorService extends AbstractScadaService {
         }
     }
 
-    private void addNodes(UaFolderNode root) {
-        createNode(root, SimulatorTags.BIN_DATA_PARSED_LABEL, BuiltinDataType.String.getNodeId(), "");
-        createNode(root, SimulatorTags.BIN_DATA_DESTINATION, BuiltinDataType.String.getNodeId(), "kickout");
-        createNode(root, SimulatorTags.BIN_DATA_KICKOUT_REASON, BuiltinDataType.String.getNodeId(),
+    private void addNodes(UaFolderNode root, SimulatedLine line) {
+        createNode(root, line, SimulatorTags.BIN_DATA_PARSED_LABEL, BuiltinDataType.String.getNodeId(), "");
+        createNode(root, line, SimulatorTags.BIN_DATA_DESTINATION, BuiltinDataType.String.getNodeId(), "kickout");
+        createNode(root, line, SimulatorTags.BIN_DATA_KICKOUT_REASON, BuiltinDataType.String.getNodeId(),
                 "no_os_instruction");
-        createNode(root, SimulatorTags.BIN_DATA_ACC, BuiltinDataType.Int32.getNodeId(), 0);
+        createNode(root, line, SimulatorTags.BIN_DATA_ACC, BuiltinDataType.Int32.getNodeId(), 0);
 
-        createNode(root, SimulatorTags.CHECK_WEIGH_INFO, BuiltinDataType.String.getNodeId(), "");
-        createNode(root, SimulatorTags.CHECK_WEIGH_CAPTURED_WEIGHT, BuiltinDataType.UInt32.getNodeId(), 0);
-        createNode(root, SimulatorTags.CHECK_WEIGH_CAPTURED_DATETIME, BuiltinDataType.DateTime.getNodeId(),
+        createNode(root, line, SimulatorTags.CHECK_WEIGH_INFO, BuiltinDataType.String.getNodeId(), "");
+        createNode(root, line, SimulatorTags.CHECK_WEIGH_CAPTURED_WEIGHT, BuiltinDataType.UInt32.getNodeId(), 0);
+        createNode(root, line, SimulatorTags.CHECK_WEIGH_CAPTURED_DATETIME, BuiltinDataType.DateTime.getNodeId(),
                 new DateTime(0));
 
-        createNode(root, SimulatorTags.BIN_ROUTING_DESTINATION_ID, BuiltinDataType.Int32.getNodeId(), 0);
-        createNode(root, SimulatorTags.BIN_ROUTING_DESTINATION, BuiltinDataType.String.getNodeId(), "");
-        createNode(root, SimulatorTags.BIN_ROUTING_PRESENT, BuiltinDataType.Int32.getNodeId(), 999);
+        createNode(root, line, SimulatorTags.BIN_ROUTING_DESTINATION_ID, BuiltinDataType.Int32.getNodeId(), 0);
+        createNode(root, line, SimulatorTags.BIN_ROUTING_DESTINATION, BuiltinDataType.String.getNodeId(), "");
+        createNode(root, line, SimulatorTags.BIN_ROUTING_PRESENT, BuiltinDataType.Int32.getNodeId(), 999);
     }
 
     Set<String> runningRelays = new HashSet<String>();
-    private void startRelay(String name, Runnable runnable, int interval) {
+    private void startRelay(String name, Runnable runnable, long intervalMs) {
         context.getDeviceContext().getGatewayContext()
             .getExecutionManager()
             .registerAtFixedRate(
                     name,
                     context.getDeviceContext().getName(),
-                    runnable, interval, TimeUnit.SECONDS);
+                    runnable, (int) intervalMs, TimeUnit.MILLISECONDS);
         runningRelays.add(name);
     }
 
+    /**
+     * Consume routing instructions as soon as Present is written; the gateway writes the
+     * destination before Present so they are in place by then. Polling Present is only a fallback
+     * for when write notifications can't be relied on, see SimulatorRoutingPollMs.
+     */
     private void startRelays() {
-        startRelay("MonitorRoutingPresent",
-                new Runnable() {
-                    public void run () {
-                        int id = 0;
-                        String destination = "";
-                        int dataPresent = 0;
-
-                        Optional<Object> res = Optional.empty();
-                        res = getNodeValue(SimulatorTags.BIN_ROUTING_PRESENT);
-                        if (res.isPresent()) {
-                            dataPresent = (int) res.get();
-                        } else {
-                            logger.error("Failed to read bin data present");
-                            return;
-                        }
+        for (SimulatedLine line : lines.values()) {
+            UaVariableNode presentNode = line.nodes.get(SimulatorTags.BIN_ROUTING_PRESENT);
+            if (presentNode != null) {
+                line.routingPresentObserver = (node, attributeId, value) -> {
+                    if (attributeId == AttributeId.Value) {
+                        consumeRoutingPresent(line);
+                    }
+                };
+                presentNode.addAttributeObserver(line.routingPresentObserver);
+            } else {
+                logger.error("Node " + line.nodePath(SimulatorTags.BIN_ROUTING_PRESENT)
+                        + " not found, routing present isn't observed");
+            }
+        }
 
-                        if (dataPresent != 0 && dataPresent != 1) {
-                            // TODO: assuming data present value is only 0 or 1
-                            return;
-                        }
+        long pollMs = context.getSettings().getSimulatorRoutingPollMs();
+        if (pollMs > 0) {
+            logger.info("Polling routing present every " + pollMs + "ms");
+            startRelay("MonitorRoutingPresent", () -> lines.values().forEach(this::consumeRoutingPresent), pollMs);
+        }
+    }
 
-                        res = getNodeValue(SimulatorTags.BIN_ROUTING_DESTINATION_ID);
-                        if (res.isPresent()) {
-                            id = (int) res.get();
-                        } else {
-                            logger.error("Failed to read bin routing destination id");
-                            return;
-                        }
+    /** Hand the routing instruction to the task thread if Present is set and reset Present */
+    private void consumeRoutingPresent(SimulatedLine line) {
+        synchronized (line) {
+            int id = 0;
+            String destination = "";
+            int dataPresent = 0;
+
+            Optional<Object> res = Optional.empty();
+            res = line.getNodeValue(SimulatorTags.BIN_ROUTING_PRESENT);
+            if (res.isPresent()) {
+                dataPresent = (int) res.get();
+            } else {
+                logger.error("Failed to read bin data present");
+                return;
+            }
 
-                        res = getNodeValue(SimulatorTags.BIN_ROUTING_DESTINATION);
-                        if (res.isPresent()) {
-                            destination = (String) res.get();
-                        }
+            if (dataPresent != 0 && dataPresent != 1) {
+                // TODO: assuming data present value is only 0 or 1
+                return;
+            }
 
-                        boolean rc = taskRunnable.enqueue(new BinRoutingTask(
-                                    new OsInstruction(id, destination, dataPresent)));
-                        if (!rc) {
-                            logger.error("failed to process routing present event");
-                            setNodeValue(SimulatorTags.BIN_ROUTING_PRESENT, 999);
-                            return;
-                        }
+            res = line.getNodeValue(SimulatorTags.BIN_ROUTING_DESTINATION_ID);
+            if (res.isPresent()) {
+                id = (int) res.get();
+            } else {
+                logger.error("Failed to read bin routing destination id");
+                return;
+            }
 
-                        setNodeValue(SimulatorTags.BIN_ROUTING_PRESENT, 999);
-                    }
-                }, 3);
+            res = line.getNodeValue(SimulatorTags.BIN_ROUTING_DESTINATION);
+            if (res.isPresent()) {
+                destination = (String) res.get();
+            }
+
+            boolean rc = enqueue(new BinRoutingTask(line,
+                        new OsInstruction(id, destination, dataPresent)));
+            if (!rc) {
+                logger.error("failed to process routing present event");
+            }
+
+            // observed again, ignored as it's neither 0 nor 1
+            line.setNodeValue(SimulatorTags.BIN_ROUTING_PRESENT, 999);
+        }
     }
 
     private void stopRelays() {
+        for (SimulatedLine line : lines.values()) {
+            UaVariableNode presentNode = line.nodes.get(SimulatorTags.BIN_ROUTING_PRESENT);
+            if (presentNode != null && line.routingPresentObserver != null) {
+                presentNode.removeAttributeObserver(line.routingPresentObserver);
+            }
+        }
         for (String owner: runningRelays) {
             context.getDeviceContext().getGatewayContext()
                 .getExecutionManager()
@@ -563,25 +717,200 @@ public class SimulatorService extends AbstractScadaService {
         }
     }
 
+    /** Scan the bin on the first simulated line */
     public void scanBinLabel(int farmId, String side, String label, int weight) {
-        logger.info(String.format("scan_bin_label: %d %s %s %d",
-                    farmId, side, label, weight));
-        taskRunnable.enqueue(new ScanBinLabelTask(farmId, side, label, weight));
+        scanBinLabel(lines.keySet().iterator().next(), farmId, side, label, weight);
+    }
+
+    /** Scan the bin on the line, at least spacingMs after the previous scan of the line */
+    public void scanBinLabel(int lineId, int farmId, String side, String label, int weight) {
+        SimulatedLine line = lines.get(lineId);
+        if (line == null) {
+            throw new IllegalArgumentException("Line " + lineId + " isn't simulated, lines:" + lines.keySet());
+        }
+
+        logger.info(String.format("scan_bin_label: line %d %d %s %s %d",
+                    lineId, farmId, side, label, weight));
+        long delayNanos;
+        synchronized (line) {
+            long now = clock.nanoTime();
+            long scanAt = Math.max(now, line.nextScanAtNanos);
+            line.nextScanAtNanos = scanAt + TimeUnit.MILLISECONDS.toNanos(spacingMs);
+            delayNanos = scanAt - now;
+        }
+
+        ScanBinLabelTask task = new ScanBinLabelTask(line, farmId, side, label, weight);
+        if (delayNanos == 0) {
+            enqueue(task);
+        } else {
+            conveyorTimer.schedule(() -> enqueue(task), delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Set the simulated conveyor timing of all lines, bins already in flight keep their transit time
+     * @param transitMs time from the scanner to the diverter
+     * @param spacingMs min time between two scans of a line
+     */
+    public void setConveyorTiming(long transitMs, long spacingMs) {
+        if (transitMs < 0 || spacingMs < 0) {
+            throw new IllegalArgumentException("Negative conveyor timing transit:" + transitMs + " spacing:" + spacingMs);
+        }
+        this.transitMs = transitMs;
+        this.spacingMs = spacingMs;
+        logger.info("Conveyor timing transit ms:" + transitMs + " spacing ms:" + spacingMs);
+    }
+
+    public long getTransitMs() {
+        return transitMs;
+    }
+
+    public long getSpacingMs() {
+        return spacingMs;
+    }
+
+    public String getConveyorTiming() {
+        return "transit ms:" + transitMs + " spacing ms:" + spacingMs + " max in flight:" + MAX_IN_FLIGHT_BINS
+            + "\n" + clock.toString()
+            + "\n" + taskEngine.toString()
+            + lines.values().stream().map(line -> "\n" + line.toString()).collect(Collectors.joining());
     }
 
     public void clearBinRouting() {
-        taskRunnable.enqueue(new Task() {
+        enqueue(new Task() {
             public String getName() {
                 return "ClearBinRoutingTask";
             }
 
             public boolean prepare() {
-                return binRoutingTaskContext.isPresent();
+                return true;
             }
 
             public void run() {
-                binRoutingTaskContext = Optional.empty();
+                for (SimulatedLine line : lines.values()) {
+                    logger.info("line " + line.lineId + " cleared bins in flight:" + line.inFlightBins.size());
+                    line.inFlightBins.clear();
+                }
             }
         });
     }
+
+    /** Farm id of the generated bin labels */
+    static final int LOAD_FARM_ID = 0;
+
+    /**
+     * Start generating bins, a run already in progress is stopped first
+     *
+     * @param lineIds lines the bins are spread over, all simulated lines when empty
+     * @param binsPerSecond target rate over all lines
+     * @param routedRatio share of bins labeled with one of the routedLabels
+     * @return description of the run
+     */
+    public synchronized String startLoad(List<Integer> lineIds, double binsPerSecond, long durationMs,
+            String arrival, double routedRatio, List<String> routedLabels) {
+        List<Integer> loadLines = lineIds.isEmpty() ? new ArrayList<Integer>(lines.keySet()) : lineIds;
+        for (int lineId : loadLines) {
+            if (!lines.containsKey(lineId)) {
+                throw new IllegalArgumentException("Line " + lineId + " isn't simulated, lines:" + lines.keySet());
+            }
+        }
+
+        LoadGenerator.Arrival arrivalProcess;
+        try {
+            arrivalProcess = LoadGenerator.Arrival.valueOf(arrival.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown arrival " + arrival + ", one of "
+                    + Arrays.toString(LoadGenerator.Arrival.values()));
+        }
+
+        LoadGenerator load = new LoadGenerator(loadLines, binsPerSecond, durationMs, arrivalProcess, routedRatio,
+                routedLabels, (lineId, label, weight) -> scanBinLabel(lineId, LOAD_FARM_ID, "A", label, weight),
+                clock, logger);
+        stopLoad();
+        loadGenerator = load;
+        load.start();
+        return load.report();
+    }
+
+    public synchronized void stopLoad() {
+        LoadGenerator load = loadGenerator;
+        if (load != null && load.isRunning()) {
+            load.stop();
+        }
+    }
+
+    /** Throughput and latency of the load run in progress or the last one */
+    public String getLoadReport() {
+        LoadGenerator load = loadGenerator;
+        return load == null ? "no load run" : load.report();
+    }
+
+    /**
+     * Replay the device tag changes of a trace into a simulated line, a replay already in progress
+     * is stopped first
+     *
+     * @param lineId simulated line to replay into, the line the trace was recorded on when 0
+     * @param speed 1 for real time, N for N times faster, 0 for as fast as possible
+     * @return description of the replay
+     */
+    public synchronized String startReplay(File file, int lineId, double speed) throws IOException {
+        TraceReplay replay = new TraceReplay(file, speed, clock, logger);
+        int targetLineId = lineId == 0 ? replay.getTraceLineId() : lineId;
+        SimulatedLine line = lines.get(targetLineId);
+        if (line == null) {
+            replay.close();
+            throw new IllegalArgumentException("Line " + targetLineId + " isn't simulated, lines:" + lines.keySet());
+        }
+
+        stopReplay();
+        traceReplay = replay;
+        replay.start(targetLineId, (tag, value) -> replayValue(line, tag, value));
+        return replay.report();
+    }
+
+    /** Set the node of a device tag through the task thread, instruction tags are left to the gateway */
+    private boolean replayValue(SimulatedLine line, String tag, Object value) {
+        for (String[] source : PUBLIC_TAG_SOURCES) {
+            if (source[0].equalsIgnoreCase(tag) && !tag.startsWith(PublicTagUtil.INSTRUCTION_FOLDER)) {
+                Object nodeValue = value instanceof Long ? (Object) ((Long) value).intValue()
+                    : value instanceof Date ? new DateTime((Date) value) : value;
+                boolean scan = source[1].equals(SimulatorTags.BIN_DATA_PARSED_LABEL);
+                return enqueue(new Task() {
+                    ScadaClock.Hold hold;
+
+                    public String getName() {
+                        return "ReplayTask";
+                    }
+
+                    public boolean prepare() {
+                        if (scan) {
+                            hold = clock.hold("replayed scan line " + line.lineId);
+                        }
+                        return true;
+                    }
+
+                    public void run() {
+                        if (scan) {
+                            line.setScannedLabel(String.valueOf(nodeValue), hold);
+                        } else {
+                            line.setNodeValue(source[1], nodeValue);
+                        }
+                    }
+                });
+            }
+        }
+        return false;
+    }
+
+    public synchronized void stopReplay() {
+        TraceReplay replay = traceReplay;
+        if (replay != null && replay.isRunning()) {
+            replay.stop();
+        }
+    }
+
+    public String getReplayReport() {
+        TraceReplay replay = traceReplay;
+        return replay == null ? "no replay" : replay.report();
+    }
 }
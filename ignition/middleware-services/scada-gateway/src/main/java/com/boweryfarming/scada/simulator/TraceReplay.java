@@ -0,0 +1,163 @@
+package com.boweryfarming.scada.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.boweryfarming.scada.ScadaClock;
+import com.boweryfarming.scada.tags.PublicTagUtil;
+import com.boweryfarming.scada.tags.TagTrace;
+
+import org.slf4j.Logger;
+
+/**
+ * Plays the device side of a recorded {@link TagTrace} back into a simulated line.
+ *
+ * Changes of the device tags (QR code, weigh data, destination, ACC) are applied in recorded order
+ * at their recorded time divided by the speed on the {@link ScadaClock}, or back to back at speed 0. Instruction changes and
+ * writes are what the gateway under test decides itself, so they're skipped; record the replayed
+ * line to compare its decisions and latency with the original trace.
+ */
+class TraceReplay implements Runnable {
+    interface Sink {
+        /**
+         * Apply the value of a line tag e.g., QRCode
+         * @return false if the tag isn't replayed
+         */
+        boolean apply(String tag, Object value);
+    }
+
+    private final File file;
+    private final TagTrace.Reader reader;
+    private final double speed;
+    private final ScadaClock clock;
+    // set by start
+    private int lineId;
+    private Sink sink;
+    private final Logger logger;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+    private volatile long startNanos = 0;
+    private volatile long endNanos = 0;
+    private volatile long traceOffsetNanos = 0;
+
+    final AtomicLong replayedCount = new AtomicLong(0);
+    final AtomicLong skippedCount = new AtomicLong(0);
+    /** how late an event was applied after its scheduled time */
+    final AtomicLong maxLagNanos = new AtomicLong(0);
+
+    /** @param speed 1 for real time, N for N times faster, 0 for as fast as possible */
+    TraceReplay(File file, double speed, ScadaClock clock, Logger logger) throws IOException {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Negative replay speed:" + speed);
+        }
+        this.file = file;
+        this.reader = new TagTrace.Reader(file);
+        this.speed = speed;
+        this.clock = clock;
+        this.logger = logger;
+        this.thread = new Thread(this, "SimulatorReplay");
+        this.thread.setDaemon(true);
+    }
+
+    /** Line the trace was recorded on */
+    int getTraceLineId() {
+        return reader.getLineId();
+    }
+
+    /** @param lineId simulated line the trace is replayed into */
+    void start(int lineId, Sink sink) {
+        this.lineId = lineId;
+        this.sink = sink;
+        thread.start();
+    }
+
+    /** Release the trace of a replay that won't be started */
+    void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // read only
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    @Override
+    public void run() {
+        startNanos = clock.nanoTime();
+        String tracePath = PublicTagUtil.linePath(reader.getLineId());
+        long firstOffset = Long.MIN_VALUE;
+        logger.info("Replay started " + describe());
+
+        try {
+            TagTrace.Event event;
+            while (!stopped && (event = reader.next()) != null) {
+                String path = event.getPath();
+                if (event.getKind() != TagTrace.Kind.CHANGE
+                        || !path.regionMatches(true, 0, tracePath, 0, tracePath.length())) {
+                    skippedCount.incrementAndGet();
+                    continue;
+                }
+
+                if (firstOffset == Long.MIN_VALUE) {
+                    firstOffset = event.getOffsetNanos();
+                }
+                traceOffsetNanos = event.getOffsetNanos() - firstOffset;
+                if (speed > 0) {
+                    long at = startNanos + (long) (traceOffsetNanos / speed);
+                    long wait;
+                    while ((wait = at - clock.nanoTime()) > 0 && !stopped) {
+                        try {
+                            clock.sleep(wait, TimeUnit.NANOSECONDS);
+                        } catch (InterruptedException ie) {
+                            // stopped
+                        }
+                    }
+                    if (stopped) {
+                        break;
+                    }
+                    long lag = clock.nanoTime() - at;
+                    if (lag > maxLagNanos.get()) {
+                        maxLagNanos.set(lag);
+                    }
+                }
+
+                if (sink.apply(path.substring(tracePath.length()), event.getValue())) {
+                    replayedCount.incrementAndGet();
+                } else {
+                    skippedCount.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Replay of " + file + " failed: " + e.getMessage());
+        } finally {
+            close();
+            endNanos = clock.nanoTime();
+        }
+        logger.info("Replay finished " + report());
+    }
+
+    private String describe() {
+        return file.getName() + " recorded on line " + reader.getLineId()
+            + (reader.isVirtualClock() ? " (virtual clock)" : "") + " into line " + lineId
+            + " speed:" + (speed == 0 ? "max" : speed + "x");
+    }
+
+    String report() {
+        long end = endNanos != 0 ? endNanos : clock.nanoTime();
+        return "replay " + (endNanos == 0 ? "running " : "done ") + describe()
+            + " replayed:" + replayedCount.get()
+            + " skipped:" + skippedCount.get()
+            + " trace s:" + TimeUnit.NANOSECONDS.toSeconds(traceOffsetNanos)
+            + " elapsed s:" + (startNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toSeconds(end - startNanos))
+            + " max lag ms:" + TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get());
+    }
+}
@@ -0,0 +1,92 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+/**
+ * Items registered by path, e.g. listeners of a tag.
+ *
+ * Reads take the current immutable snapshot without locking and return the registered items as an
+ * array, so the notification path neither locks nor allocates to iterate them. Registering and
+ * unregistering copy the snapshot under a lock; they are rare compared to notifications.
+ * Returned arrays are shared and must not be modified.
+ */
+public class CopyOnWriteRegistry<T> {
+    private final IntFunction<T[]> arrayFactory;
+    private final T[] empty;
+    private volatile Map<String, T[]> entries = Collections.emptyMap();
+
+    /** @param arrayFactory e.g. PublicTagEventListener[]::new */
+    public CopyOnWriteRegistry(IntFunction<T[]> arrayFactory) {
+        this.arrayFactory = arrayFactory;
+        this.empty = arrayFactory.apply(0);
+    }
+
+    /** Items of the path, an empty array when there's none */
+    public T[] get(String path) {
+        T[] items = entries.get(path);
+        return items == null ? empty : items;
+    }
+
+    /** @return false when an equal item is already registered for the path */
+    public synchronized boolean add(String path, T item) {
+        T[] items = get(path);
+        for (T registered : items) {
+            if (registered.equals(item)) {
+                return false;
+            }
+        }
+
+        T[] updated = arrayFactory.apply(items.length + 1);
+        System.arraycopy(items, 0, updated, 0, items.length);
+        updated[items.length] = item;
+        publish(path, updated);
+        return true;
+    }
+
+    public boolean remove(String path, T item) {
+        return removeIf(path, registered -> registered.equals(item));
+    }
+
+    /** @return whether an item was removed */
+    public synchronized boolean removeIf(String path, Predicate<T> filter) {
+        T[] items = get(path);
+        int kept = 0;
+        T[] updated = arrayFactory.apply(items.length);
+        for (T registered : items) {
+            if (!filter.test(registered)) {
+                updated[kept++] = registered;
+            }
+        }
+        if (kept == items.length) {
+            return false;
+        }
+
+        T[] trimmed = arrayFactory.apply(kept);
+        System.arraycopy(updated, 0, trimmed, 0, kept);
+        publish(path, trimmed);
+        return true;
+    }
+
+    private void publish(String path, T[] items) {
+        Map<String, T[]> updated = new HashMap<String, T[]>(entries);
+        if (items.length == 0) {
+            updated.remove(path);
+        } else {
+            updated.put(path, items);
+        }
+        entries = Collections.unmodifiableMap(updated);
+    }
+
+    /** Total count of registered items */
+    public int size() {
+        int size = 0;
+        for (T[] items : entries.values()) {
+            size += items.length;
+        }
+        return size;
+    }
+}
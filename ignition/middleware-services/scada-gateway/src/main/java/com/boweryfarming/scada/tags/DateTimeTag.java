@@ -0,0 +1,25 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.Date;
+
+import com.inductiveautomation.ignition.common.sqltags.model.types.DataType;
+
+/** DateTime public tag */
+public class DateTimeTag extends TypedTag {
+    DateTimeTag(PublicTag tag) throws RuntimeException {
+        super(tag);
+        checkDataType(tag, "DateTimeTag", DataType.DateTime);
+    }
+
+    /** @return epoch millis of the value, or defaultValue when there's no good value */
+    public long getEpochMillis(long defaultValue) {
+        Object value = goodValue();
+        return value instanceof Date ? ((Date) value).getTime() : defaultValue;
+    }
+
+    /** @return the value, or null when there's no good value */
+    public Date getDate() {
+        Object value = goodValue();
+        return value instanceof Date ? (Date) value : null;
+    }
+}
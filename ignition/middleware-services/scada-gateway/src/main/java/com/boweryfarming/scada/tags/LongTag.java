@@ -0,0 +1,17 @@
+package com.boweryfarming.scada.tags;
+
+import com.inductiveautomation.ignition.common.sqltags.model.types.DataType;
+
+/** Integer public tag */
+public class LongTag extends TypedTag {
+    LongTag(PublicTag tag) throws RuntimeException {
+        super(tag);
+        checkDataType(tag, "LongTag", DataType.Int1, DataType.Int2, DataType.Int4, DataType.Int8);
+    }
+
+    /** @return the value, or defaultValue when there's no good value */
+    public long getLong(long defaultValue) {
+        Object value = goodValue();
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+}
@@ -1,73 +1,93 @@
 package com.boweryfarming.scada.tags;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.inductiveautomation.ignition.common.model.values.QualifiedValue;
 import com.inductiveautomation.ignition.common.model.values.QualityCode;
+import com.inductiveautomation.ignition.common.sqltags.model.types.DataType;
 import com.inductiveautomation.ignition.common.tags.model.TagPath;
-import com.inductiveautomation.ignition.common.tags.model.event.InvalidListenerException;
 import com.inductiveautomation.ignition.common.tags.model.event.TagChangeEvent;
-import com.inductiveautomation.ignition.common.tags.model.event.TagChangeListener;
 import com.inductiveautomation.ignition.common.tags.paths.parser.TagPathParser;
 
 public class PublicTag {
     // TODO: implement Ignition SDK here
     // TODO: validate tag
+    static final long WRITE_TIMEOUT_MS = 3000;
+
     private final PublicTagManagerService service;
     private final String path;
     private final TagPath tagPath;
-    private final ValueListener listener;
-    private final AtomicReference<Object> tagValue = new AtomicReference<Object>(null);
+    private final DataType dataType;
+    /** bumped on every value or quality change */
+    private final AtomicLong version = new AtomicLong(0);
+    /** null unless enabled */
+    private volatile TagHistory history = null;
+    private final AtomicReference<QualifiedValue> tagValue = new AtomicReference<QualifiedValue>(null);
+
+    final AtomicLong eventCount = new AtomicLong(0);
+    final AtomicLong notifiedCount = new AtomicLong(0);
+    final AtomicLong unchangedCount = new AtomicLong(0);
+    final AtomicLong staleCount = new AtomicLong(0);
 
-    public PublicTag(PublicTagManagerService service, String path) throws IOException {
+    public PublicTag(PublicTagManagerService service, String path, DataType dataType) throws IOException {
         this.service = service;
         // throws IOException when invalid path string
         this.path = path;
         this.tagPath = TagPathParser.parse(path);
-        this.listener = new ValueListener();
+        this.dataType = dataType;
     }
 
-    /** Start updating tag value */
-    public void start() {
-        this.service.getTagManager().subscribeAsync(this.tagPath, this.listener);
-    }
+    /**
+     * Takes the value carried by the change event, no read is needed. Listeners are notified when
+     * the value or the quality changed and the new value is good; events older than the current
+     * value are dropped. Called by the manager's subscription listener.
+     */
+    void onTagChanged(TagChangeEvent event) {
+        QualifiedValue qv = event.getValue();
+        if (qv == null) {
+            return;
+        }
+        eventCount.incrementAndGet();
 
-    /** Stop updating tag value */
-    public void stop() throws InterruptedException, ExecutionException {
-        this.service.getTagManager().unsubscribeAsync(this.tagPath, this.listener).get();
-    }
+        QualifiedValue previous = this.tagValue.get();
+        if (previous != null && isOlder(qv, previous)) {
+            staleCount.incrementAndGet();
+            return;
+        }
+        this.tagValue.set(qv);
 
-    class ValueListener implements TagChangeListener {
-        public void tagChanged(TagChangeEvent event) throws InvalidListenerException {
-            List<TagPath> list = new ArrayList<TagPath>();
-            list.add(event.getTagPath());
-
-            try {
-                // TODO: Optimize: SCADA services can handle ComputableFuture in a separated thread
-                List<QualifiedValue> tags = service.getTagManager().readAsync(list).get();
-                QualifiedValue qv = tags.get(0);
-
-                Object newValue = qv.getValue();
-                if (newValue == null) {
-                    return;
-                }
-                if (newValue.equals(PublicTag.this.tagValue)) {
-                    // don't do anything
-                } else {
-                    PublicTag.this.tagValue.set(qv.getValue());
-                    PublicTag.this.service.notifyPublicTagValueUpdated(PublicTag.this);
-                }
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            }
+        if (previous != null && Objects.equals(previous.getValue(), qv.getValue())
+                && Objects.equals(previous.getQuality(), qv.getQuality())) {
+            // timestamp only
+            unchangedCount.incrementAndGet();
+            return;
         }
+        version.incrementAndGet();
+        TagHistory history = this.history;
+        if (history != null) {
+            history.record(qv);
+        }
+
+        if (qv.getValue() == null || qv.getQuality() == null || qv.getQuality().isNotGood()) {
+            return;
+        }
+
+        notifiedCount.incrementAndGet();
+        this.service.notifyPublicTagValueUpdated(this, qv.getValue());
+    }
+
+    private static boolean isOlder(QualifiedValue qv, QualifiedValue than) {
+        Date timestamp = qv.getTimestamp();
+        Date current = than.getTimestamp();
+        return timestamp != null && current != null && timestamp.before(current);
     }
 
     public String getPath() {
@@ -78,25 +98,59 @@ public class PublicTag {
         return this.tagPath;
     }
 
+    public DataType getDataType() {
+        return this.dataType;
+    }
+
+    /** @see TypedTag#getVersion() */
+    public long getVersion() {
+        return this.version.get();
+    }
+
+    /** Keep the recent values in a ring buffer of capacity samples */
+    public void enableHistory(int capacity) {
+        this.history = new TagHistory(capacity);
+    }
+
+    /** null when the history isn't enabled */
+    public TagHistory getHistory() {
+        return this.history;
+    }
+
+    /** Latest value with its quality and timestamp, null until the first change event */
+    public QualifiedValue getQualifiedValue() {
+        return this.tagValue.get();
+    }
+
     public Object getValue() throws RuntimeException {
         // tag only supports primitive types so return value of this is a pass-by-value
-        Object value = this.tagValue.get();
+        QualifiedValue qv = this.tagValue.get();
+        Object value = qv == null ? null : qv.getValue();
         if (value == null) {
             throw new RuntimeException("No value in tag: " + this.path);
         }
         return value;
     }
 
+    /**
+     * Write the tag value without waiting for the result
+     * @return quality of the write, completes exceptionally when the write fails or times out
+     */
+    public CompletableFuture<QualityCode> setValueAsync(Object newValue) {
+        this.service.recordWrite(this.path, newValue);
+        return this.service.getTagManager().writeAsync(Arrays.asList(this.tagPath), Arrays.asList(newValue))
+            .orTimeout(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .thenApply(results -> results.get(0));
+    }
+
     public void setValue(Object newValue) throws RuntimeException {
         try {
-            List<QualityCode> results = this.service.getTagManager().writeAsync(
-                    Arrays.asList(this.tagPath), Arrays.asList(newValue)).get(3, TimeUnit.SECONDS);
-            QualityCode qc = results.get(0);
+            QualityCode qc = setValueAsync(newValue).get();
             if(qc.isNotGood()) {
                 throw new RuntimeException("Failed to update tag value path:" + this.tagPath.toString()
                         + " value" + newValue.toString() + " reason:" + qc.toString());
             }
-        } catch (TimeoutException | ExecutionException | InterruptedException e) {
+        } catch (ExecutionException | InterruptedException e) {
             throw new RuntimeException("Failed to update tag value path:" + this.tagPath.toString()
                     + " value" + newValue.toString() + " reason:" + e.getMessage());
         }
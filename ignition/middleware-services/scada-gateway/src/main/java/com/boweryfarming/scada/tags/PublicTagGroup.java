@@ -0,0 +1,115 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.inductiveautomation.ignition.common.model.values.QualifiedValue;
+
+/**
+ * Public tags captured together when a trigger tag changes.
+ *
+ * Member values are taken from the tags' latest change events on the subscription thread of the
+ * trigger change, before the listeners are dispatched, so a listener sees the members as they
+ * were at the trigger edge rather than when it gets to run. Capturing doesn't read from the tag
+ * provider and allocates one snapshot with one value array.
+ */
+public class PublicTagGroup {
+    private final String name;
+    private final String triggerPath;
+    private final List<String> memberPaths = new ArrayList<String>();
+    private final Map<String, Integer> memberIndexes = new HashMap<String, Integer>();
+
+    public PublicTagGroup(String name, String triggerPath) {
+        this.name = name;
+        this.triggerPath = triggerPath;
+    }
+
+    public PublicTagGroup member(String path) {
+        if (!memberIndexes.containsKey(path)) {
+            memberIndexes.put(path, memberPaths.size());
+            memberPaths.add(path);
+        }
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTriggerPath() {
+        return triggerPath;
+    }
+
+    public List<String> getMemberPaths() {
+        return memberPaths;
+    }
+
+    /** Capture current values of the members, resolved in member order */
+    Snapshot capture(PublicTag[] members, Object triggerValue) {
+        Object[] values = new Object[members.length];
+        for (int i = 0; i < members.length; i++) {
+            QualifiedValue qv = members[i].getQualifiedValue();
+            if (qv != null && qv.getQuality() != null && qv.getQuality().isGood()) {
+                values[i] = qv.getValue();
+            }
+        }
+        return new Snapshot(triggerValue, values, System.currentTimeMillis());
+    }
+
+    /** Member values at the trigger edge, members without a good value are null */
+    public class Snapshot {
+        private final Object triggerValue;
+        private final Object[] values;
+        private final long capturedAtMillis;
+
+        Snapshot(Object triggerValue, Object[] values, long capturedAtMillis) {
+            this.triggerValue = triggerValue;
+            this.values = values;
+            this.capturedAtMillis = capturedAtMillis;
+        }
+
+        public PublicTagGroup getGroup() {
+            return PublicTagGroup.this;
+        }
+
+        public Object getTriggerValue() {
+            return triggerValue;
+        }
+
+        public long getCapturedAtMillis() {
+            return capturedAtMillis;
+        }
+
+        public Object get(String path) {
+            Integer index = memberIndexes.get(path);
+            return index == null ? null : values[index];
+        }
+
+        public String getString(String path) {
+            Object value = get(path);
+            return value == null ? null : value.toString();
+        }
+
+        public Long getLong(String path) {
+            Object value = get(path);
+            return value instanceof Number ? ((Number) value).longValue() : null;
+        }
+
+        public Date getDate(String path) {
+            Object value = get(path);
+            return value instanceof Date ? (Date) value : null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name).append(" trigger:").append(triggerValue);
+            for (int i = 0; i < values.length; i++) {
+                sb.append(" ").append(memberPaths.get(i)).append(":").append(values[i]);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.EventListener;
+
+public interface PublicTagGroupListener extends EventListener {
+    public void onTriggered(PublicTagGroup.Snapshot snapshot);
+}
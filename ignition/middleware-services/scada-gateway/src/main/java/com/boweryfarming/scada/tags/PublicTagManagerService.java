@@ -1,18 +1,27 @@
 package com.boweryfarming.scada.tags;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import com.boweryfarming.scada.AbstractScadaService;
 import com.boweryfarming.scada.ServiceContext;
@@ -26,6 +35,9 @@ import com.inductiveautomation.ignition.common.tags.config.properties.WellKnownT
 import com.inductiveautomation.ignition.common.tags.config.types.TagObjectType;
 import com.inductiveautomation.ignition.common.tags.model.TagPath;
 import com.inductiveautomation.ignition.common.tags.model.TagProvider;
+import com.inductiveautomation.ignition.common.tags.model.event.InvalidListenerException;
+import com.inductiveautomation.ignition.common.tags.model.event.TagChangeEvent;
+import com.inductiveautomation.ignition.common.tags.model.event.TagChangeListener;
 import com.inductiveautomation.ignition.common.tags.paths.parser.TagPathParser;
 import com.inductiveautomation.ignition.gateway.model.GatewayContext;
 import com.inductiveautomation.ignition.gateway.tags.model.GatewayTagManager;
@@ -34,48 +46,149 @@ public class PublicTagManagerService extends AbstractScadaService {
     private final GatewayContext gatewayContext;
     private final GatewayTagManager tagManager;
     private final TagProvider tagProvider;
-    private final ExecutorService tagNotificationExecutor = Executors.newFixedThreadPool(3);
-    private Map<String, PublicTag> publicTags = new HashMap<String, PublicTag>();
-    private Map<String, Collection<PublicTagEventListener>> publicTagEventListeners =
-        new HashMap<String, Collection<PublicTagEventListener>>();
+    static final int TAG_NOTIFICATION_LANES = 4;
+    static final int TAG_PUBLISHER_THREADS = 2;
+
+    /** events of one line (or of one path outside of lines) are delivered in order */
+    private final StripedDispatcher tagNotificationDispatcher;
+    /** delivers changes to publisher subscribers, apart from the dispatcher so they can't hold its lanes */
+    private final ExecutorService publisherExecutor;
+    /** publisher ticks and filter flushes */
+    private final ScheduledExecutorService tagTimer;
+    private final List<TagChangePublisher> publishers = new CopyOnWriteArrayList<TagChangePublisher>();
+    /** changes buffered per trace subscription, a recorder falling further behind loses the oldest */
+    static final int TRACE_BUFFER_SIZE = 4096;
+    private final Map<Integer, TagTraceRecorder> traceRecorders = new ConcurrentHashMap<Integer, TagTraceRecorder>();
+    /** copy-on-write, replaced as a whole under publicTagsLock so lookups never lock */
+    private volatile Map<String, PublicTag> publicTags = Collections.emptyMap();
+    private final Object publicTagsLock = new Object();
+    private long provisioningMillis = -1;
+
+    static final long SUBSCRIBE_TIMEOUT_MS = 10000;
+    static final long UNSUBSCRIBE_TIMEOUT_MS = 5000;
+    private final SubscriptionListener subscriptionListener = new SubscriptionListener();
+    private final Map<TagPath, PublicTag> subscribedTags = new ConcurrentHashMap<TagPath, PublicTag>();
+    private final Map<String, PublicTag> subscribedTagsByName = new ConcurrentHashMap<String, PublicTag>();
+    private volatile List<TagPath> subscribedPaths = Collections.emptyList();
+    private final AtomicLong unroutedEventCount = new AtomicLong(0);
+    private final Map<String, TagFilter.State> tagFilters = new ConcurrentHashMap<String, TagFilter.State>();
+    private final CopyOnWriteRegistry<PublicTagEventListener> publicTagEventListeners =
+        new CopyOnWriteRegistry<PublicTagEventListener>(PublicTagEventListener[]::new);
+    private final CopyOnWriteRegistry<GroupRegistration> publicTagGroupListeners =
+        new CopyOnWriteRegistry<GroupRegistration>(GroupRegistration[]::new);
+
+    static class GroupRegistration {
+        final PublicTagGroup group;
+        final PublicTag[] members;
+        final PublicTagGroupListener listener;
+
+        GroupRegistration(PublicTagGroup group, PublicTag[] members, PublicTagGroupListener listener) {
+            this.group = group;
+            this.members = members;
+            this.listener = listener;
+        }
+    }
 
     public PublicTagManagerService(ServiceContext context) {
         super(context);
         this.gatewayContext = context.getGatewayContext();
         this.tagManager = this.gatewayContext.getTagManager();
         this.tagProvider = this.tagManager.getTagProvider("Public");
+        this.tagNotificationDispatcher = new StripedDispatcher("TagNotification", TAG_NOTIFICATION_LANES, logger);
+        AtomicInteger publisherThreads = new AtomicInteger(0);
+        this.publisherExecutor = Executors.newFixedThreadPool(TAG_PUBLISHER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "TagPublisher-" + publisherThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.tagTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TagTimer");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
     public void onStart() {
+        tagNotificationDispatcher.start();
         preparePublicTags();
+        applyConfiguredTagFilters();
         subscribeTagValues();
     }
 
+    /** Filters of the TagFilters setting e.g., "[Public]Conveyance/Bin/1/Weigh/Weight=deadband:5;..." */
+    private void applyConfiguredTagFilters() {
+        String filters = context.getSettings().getTagFilters();
+        if (filters == null) {
+            return;
+        }
+
+        for (String item : filters.split(";")) {
+            if (item.trim().isEmpty()) {
+                continue;
+            }
+            String[] kv = item.trim().split("=", 2);
+            try {
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("expected path=filter");
+                }
+                setTagFilter(kv[0].trim(), TagFilter.parse(kv[1]));
+                logger.info("Tag filter " + kv[0].trim() + " " + kv[1].trim());
+            } catch (RuntimeException e) {
+                logger.error("Invalid tag filter setting " + item + ": " + e.getMessage());
+            }
+        }
+    }
+
     @Override
     public void onDestroy() {
         unsubscribeTagValues();
+        for (int lineId : new ArrayList<Integer>(traceRecorders.keySet())) {
+            stopTraceRecording(lineId);
+        }
+        for (TagChangePublisher publisher : publishers) {
+            publisher.close();
+        }
+        publishers.clear();
+        for (TagFilter.State filter : tagFilters.values()) {
+            filter.cancel();
+        }
+        tagNotificationDispatcher.close();
+        tagTimer.shutdownNow();
+        publisherExecutor.shutdown();
     }
 
+    /**
+     * Browse the [Public]Conveyance subtree once, diff it against the schema of the configured
+     * lines and save everything missing in one call
+     */
     private void preparePublicTags() {
-        List<TagConfiguration> configs = new ArrayList<>();
+        long start = System.nanoTime();
+        PublicTagSchema schema = PublicTagSchema.conveyance(context.getSettings().getConveyorLineIds());
+        int historySize = context.getSettings().getTagHistorySize();
 
+        Map<String, TagConfigurationModel> existing;
+        try {
+            existing = browse(PublicTagUtil.CONVEYANCE_FOLDER);
+        } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+            logger.warn("Failed to browse public tags: " + e.toString());
+            return;
+        }
+        long browseMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        List<TagConfiguration> configs = new ArrayList<>();
+        Map<String, PublicTag> tags = new HashMap<String, PublicTag>();
         try {
-            prepareFolder(configs, "[Public]Conveyance/");
-            prepareFolder(configs, "[Public]Conveyance/Bin/");
-            prepareFolder(configs, "[Public]Conveyance/Bin/1/");
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/QRCode", DataType.String);
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/Destination", DataType.String);
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/Result", DataType.String);
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/ACC", DataType.Int8);
-            prepareFolder(configs, "[Public]Conveyance/Bin/1/Instruction");
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/Instruction/Present", DataType.String);
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/Instruction/DestinationId", DataType.Int8);
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/Instruction/DesiredDestination", DataType.String);
-            prepareFolder(configs, "[Public]Conveyance/Bin/1/Weigh");
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/Weigh/Info", DataType.String);
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/Weigh/Weight", DataType.Int8);
-            preparePublicTag(configs, "[Public]Conveyance/Bin/1/Weigh/DateTime", DataType.DateTime);
+            for (PublicTagSchema.Entry entry : schema.getEntries()) {
+                DataType dataType = prepareEntry(configs, entry, existing.get(configKey(entry.getPath())));
+                if (entry.getType() == TagObjectType.AtomicTag) {
+                    PublicTag tag = new PublicTag(this, entry.getPath(), dataType);
+                    if (historySize > 0) {
+                        tag.enableHistory(historySize);
+                    }
+                    tags.put(entry.getPath(), tag);
+                }
+            }
         } catch (Exception e) {
             logger.warn("Failed Public tag initialization: " + e.getMessage());
             return;
@@ -84,176 +197,498 @@ public class PublicTagManagerService extends AbstractScadaService {
         /**
          * currently we're not merge/overwriting existing tags
          */
-        try {
-            List<QualityCode> res = tagProvider.saveTagConfigsAsync(configs, CollisionPolicy.Abort).get(10, TimeUnit.SECONDS);
-            for (QualityCode code : res) {
-                logger.info("Save tag result: " + code.toString());
+        if (!configs.isEmpty()) {
+            try {
+                List<QualityCode> res = tagProvider.saveTagConfigsAsync(configs, CollisionPolicy.Abort).get(10, TimeUnit.SECONDS);
+                for (QualityCode code : res) {
+                    if (code.isNotGood()) {
+                        logger.warn("Save tag result: " + code.toString());
+                    }
+                }
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                logger.warn("Failed to save tag config" + e.toString()); // TODO: retry
+                return;
             }
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            logger.warn("Failed to save tag config" + e.toString()); // TODO: retry
-            return;
         }
-    }
+        addPublicTags(tags);
 
-    void subscribeTagValues() {
-        for (Map.Entry<String, PublicTag> entry : publicTags.entrySet()) {
-            PublicTag tag = entry.getValue();
-            tag.start();
-        }
+        provisioningMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logger.info("Provisioned public tags: " + schema.getEntries().size() + " in schema, "
+                + existing.size() + " existing, " + configs.size() + " created in "
+                + provisioningMillis + "ms (browse " + browseMillis + "ms)");
     }
 
-    void unsubscribeTagValues() {
-        for (Map.Entry<String, PublicTag> entry : publicTags.entrySet()) {
-            PublicTag tag = entry.getValue();
-            try {
-                tag.stop();
-            } catch (Exception e) {
-                logger.warn("Failed to unsubscribe tag" + e.toString());
+    /**
+     * Routes change events of every public tag to its PublicTag through the path index, so all
+     * tags are subscribed with one call
+     */
+    class SubscriptionListener implements TagChangeListener {
+        public void tagChanged(TagChangeEvent event) throws InvalidListenerException {
+            TagPath path = event.getTagPath();
+            PublicTag tag = subscribedTags.get(path);
+            if (tag == null && path != null) {
+                // e.g., differently cased path
+                tag = subscribedTagsByName.get(configKey(path.toStringFull()));
+            }
+
+            if (tag == null) {
+                unroutedEventCount.incrementAndGet();
                 return;
             }
+            tag.onTagChanged(event);
         }
     }
 
-    private boolean prepareFolder(List<TagConfiguration> configs, String path) {
-        TagPath tagPath;
-        try {
-            tagPath = TagPathParser.parse(path);
-        } catch (IOException e) {
-            logger.warn("Parse error " + path + ":" + e.toString());
-            return false;
+    void subscribeTagValues() {
+        long start = System.nanoTime();
+        List<TagPath> paths = new ArrayList<TagPath>(publicTags.size());
+        for (PublicTag tag : publicTags.values()) {
+            subscribedTags.put(tag.getTagPath(), tag);
+            subscribedTagsByName.put(configKey(tag.getTagPath().toStringFull()), tag);
+            paths.add(tag.getTagPath());
+        }
+        if (paths.isEmpty()) {
+            return;
         }
 
         try {
-            List<TagConfigurationModel> res = this.tagProvider.getTagConfigsAsync(Arrays.asList(tagPath), false, true).get(3, TimeUnit.SECONDS);
-            logger.info("Prepare Tag:" + path + " res: " + res.size());
-            if (res.size() == 1) {
-                TagConfiguration config = res.get(0);
-
-                if (config.getType() == TagObjectType.Unknown) {
-                    logger.info("Creating new folder:" + path);
-                    TagConfiguration newConfig = BasicTagConfiguration.createNew(tagPath);
-                    newConfig.setType(TagObjectType.Folder);
-                    configs.add(newConfig);
-                    return true;
-                }
-
-                if (config.getType() != TagObjectType.Folder) {
-                    logger.error("Tag:" + path + " exists but is not a folder >> "
-                            + config.getType().toString());
+            tagManager.subscribeAsync(paths, Collections.nCopies(paths.size(), subscriptionListener))
+                .get(SUBSCRIBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            subscribedPaths = paths;
+            logger.info("Subscribed " + paths.size() + " public tags in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            // the subscription may still complete, unsubscribe everything on destroy regardless
+            subscribedPaths = paths;
+            logger.warn("Failed to subscribe " + paths.size() + " public tags: " + e.toString());
+        }
+    }
 
-                    return false;
-                }
+    void unsubscribeTagValues() {
+        List<TagPath> paths = subscribedPaths;
+        subscribedPaths = Collections.emptyList();
+        if (paths.isEmpty()) {
+            return;
+        }
 
-                return true;
-            } else {
-                logger.error("Multiple configs found");
-                return false;
-            }
+        long start = System.nanoTime();
+        try {
+            tagManager.unsubscribeAsync(paths, Collections.nCopies(paths.size(), subscriptionListener))
+                .get(UNSUBSCRIBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            logger.info("Unsubscribed " + paths.size() + " public tags in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
         } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            logger.warn("Browse error " + path + ":" + e.toString());
-            return false;
+            logger.warn("Failed to unsubscribe " + paths.size() + " public tags: " + e.toString());
         }
     }
 
-    private void preparePublicTag(List<TagConfiguration> configs, String path, DataType type) throws Exception {
-        if (preparePublicTagInternal(configs, path, type)) {
-            publicTags.put(path, new PublicTag(this, path));
-        } else {
-            throw new Exception("Failed to prepare public tag:" + path);
+    /** Configs of the subtree by lower case path, tag paths are case insensitive */
+    private Map<String, TagConfigurationModel> browse(String root)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        String rootPath = root.endsWith("/") ? root.substring(0, root.length() - 1) : root;
+        List<TagConfigurationModel> res = this.tagProvider.getTagConfigsAsync(
+                Arrays.asList(TagPathParser.parse(rootPath)), true, true).get(10, TimeUnit.SECONDS);
+
+        Map<String, TagConfigurationModel> configs = new HashMap<String, TagConfigurationModel>();
+        for (TagConfigurationModel model : res) {
+            index(configs, rootPath, model);
         }
+        return configs;
     }
 
-    private boolean preparePublicTagInternal(List<TagConfiguration> configs, String path, DataType type) {
-        TagPath tagPath;
-        try {
-            tagPath = TagPathParser.parse(path);
-        } catch (IOException e) {
-            logger.warn("Parse error " + path + ":" + e.toString());
-            return false;
+    private void index(Map<String, TagConfigurationModel> configs, String path, TagConfigurationModel model) {
+        if (model.getType() == TagObjectType.Unknown) {
+            return;
         }
 
-        try {
-            List<TagConfigurationModel> res = this.tagProvider.getTagConfigsAsync(Arrays.asList(tagPath), false, true).get(3, TimeUnit.SECONDS);
-            logger.info("Prepare Tag:" + path + " res: " + res.size());
-            if (res.size() == 1) {
-                TagConfiguration config = res.get(0);
-
-                if (config.getType() == TagObjectType.Unknown) {
-                    logger.info("Creating new reference: " + path);
-                    TagConfiguration newConfig = BasicTagConfiguration.createNew(tagPath);
-                    newConfig.setType(TagObjectType.AtomicTag);
-                    newConfig.set(WellKnownTagProps.ValueSource, "reference");
-                    newConfig.set(WellKnownTagProps.DataType, type);
-                    configs.add(newConfig);
-                    return true;
-                }
-
-                if (config.getType() != TagObjectType.AtomicTag) {
-                    logger.error("Tag:" + path + " exists but is not an atomic >> "
-                            + config.getType().toString());
+        configs.put(configKey(path), model);
+        List<TagConfigurationModel> children = model.getChildren();
+        if (children == null) {
+            return;
+        }
+        for (TagConfigurationModel child : children) {
+            index(configs, path + "/" + child.getName(), child);
+        }
+    }
 
-                    return false;
-                }
+    private static String configKey(String path) {
+        return path.toLowerCase();
+    }
 
-                String valueSource = config.get(WellKnownTagProps.ValueSource);
-                if(!valueSource.equals("reference")) {
-                    logger.info("Tag: " + path + " exists but not a reference >> "
-                            + valueSource);
-                }
-                return true;
+    /**
+     * Add the config of a schema entry to configs if it doesn't exist yet
+     * @return data type of the tag, the existing one if the tag exists
+     * @throws Exception when something else exists at the path
+     */
+    private DataType prepareEntry(List<TagConfiguration> configs, PublicTagSchema.Entry entry, TagConfiguration config)
+            throws Exception {
+        String path = entry.getPath();
+        if (config == null) {
+            TagConfiguration newConfig = BasicTagConfiguration.createNew(TagPathParser.parse(path));
+            newConfig.setType(entry.getType());
+            if (entry.getType() == TagObjectType.AtomicTag) {
+                logger.info("Creating new reference: " + path);
+                newConfig.set(WellKnownTagProps.ValueSource, "reference");
+                newConfig.set(WellKnownTagProps.DataType, entry.getDataType());
             } else {
-                logger.error("Multiple configs found");
-                return false;
+                logger.info("Creating new folder:" + path);
+            }
+            configs.add(newConfig);
+            return entry.getDataType();
+        }
+
+        if (config.getType() != entry.getType()) {
+            throw new Exception("Tag:" + path + " exists but is not a " + entry.getType() + " >> "
+                    + config.getType().toString());
+        }
+
+        if (entry.getType() == TagObjectType.AtomicTag) {
+            String valueSource = config.get(WellKnownTagProps.ValueSource);
+            if (!"reference".equals(valueSource)) {
+                logger.info("Tag: " + path + " exists but not a reference >> " + valueSource);
+            }
+
+            DataType dataType = config.get(WellKnownTagProps.DataType);
+            if (dataType != null && dataType != entry.getDataType()) {
+                logger.warn("Tag: " + path + " exists but is " + dataType + " >> expected " + entry.getDataType());
+                return dataType;
             }
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            logger.warn("Browse error " + path + ":" + e.toString());
-            return false;
         }
+        return entry.getDataType();
     }
 
     public PublicTag getPublicTag(String tagPath) {
-        /**
-         * TODO: lock (in case.. there's new public tags added during runtime?)
-         * Mostly this isn't required (asumming SCADA gateway can restart after an software upgrade)
-         */
-        if (!publicTags.containsKey(tagPath)) {
-            return null;
+        return publicTags.get(tagPath);
+    }
+
+    /** Publish tags added at runtime, lookups see either all or none of them */
+    void addPublicTags(Map<String, PublicTag> tags) {
+        synchronized (publicTagsLock) {
+            Map<String, PublicTag> updated = new HashMap<String, PublicTag>(publicTags);
+            updated.putAll(tags);
+            publicTags = Collections.unmodifiableMap(updated);
         }
+    }
 
-        return publicTags.get(tagPath);
+    /**
+     * Typed handles, resolve them once when a service starts and keep them
+     * @throws RuntimeException when the tag is undefined or its data type doesn't fit the handle
+     */
+    public LongTag longTag(String tagPath) throws RuntimeException {
+        return new LongTag(requirePublicTag(tagPath));
     }
 
-    public void notifyPublicTagValueUpdated(PublicTag tag) {
+    public StringTag stringTag(String tagPath) throws RuntimeException {
+        return new StringTag(requirePublicTag(tagPath));
+    }
+
+    public DateTimeTag dateTimeTag(String tagPath) throws RuntimeException {
+        return new DateTimeTag(requirePublicTag(tagPath));
+    }
+
+    private PublicTag requirePublicTag(String tagPath) throws RuntimeException {
+        PublicTag tag = getPublicTag(tagPath);
+        if (tag == null) {
+            throw new RuntimeException("Undefined tag:" + tagPath);
+        }
+        return tag;
+    }
+
+    /**
+     * Filter the notifications of a tag, replacing its previous filter
+     * @throws RuntimeException when the tag is undefined
+     */
+    public void setTagFilter(String path, TagFilter filter) throws RuntimeException {
+        PublicTag tag = requirePublicTag(path);
+        TagFilter.State previous = tagFilters.put(tag.getPath(), new TagFilter.State(filter));
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    /** @throws RuntimeException when the tag is undefined */
+    public void removeTagFilter(String path) throws RuntimeException {
+        TagFilter.State previous = tagFilters.remove(requirePublicTag(path).getPath());
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    public void notifyPublicTagValueUpdated(PublicTag tag, Object value) {
+        TagFilter.State filter = tagFilters.get(tag.getPath());
+        if (filter != null) {
+            boolean accepted = filter.accept(value, System.nanoTime(), delayNanos ->
+                    tagTimer.schedule(() -> releaseHeldValue(tag, filter), delayNanos, TimeUnit.NANOSECONDS));
+            if (!accepted) {
+                return;
+            }
+        }
+
+        deliver(tag, value, filter);
+    }
+
+    private void releaseHeldValue(PublicTag tag, TagFilter.State filter) {
+        Object value = filter.release(System.nanoTime());
+        if (value != null && tagFilters.get(tag.getPath()) == filter) {
+            deliver(tag, value, filter);
+        }
+    }
+
+    private void deliver(PublicTag tag, Object value, TagFilter.State filter) {
         String path = tag.getPath();
-        Object value = tag.getValue();
         logger.info("Notify tag value updated path: " + path + " value: " + value.toString());
-        Collection<PublicTagEventListener> list = publicTagEventListeners.get(path);
-        if (list == null) {
+        String key = dispatchKey(path);
+        for (PublicTagEventListener listener : publicTagEventListeners.get(path)) {
+            if (filter != null && filter.filter.isCoalescing()) {
+                dispatchCoalesced(key, path, value, listener, filter);
+            } else {
+                tagNotificationDispatcher.dispatch(key, () -> listener.onValueChanged(path, value));
+            }
+        }
+
+        for (GroupRegistration registration : publicTagGroupListeners.get(path)) {
+            // captured now, at the trigger edge, not when the listener runs
+            PublicTagGroup.Snapshot snapshot = registration.group.capture(registration.members, value);
+            tagNotificationDispatcher.dispatch(key, () -> registration.listener.onTriggered(snapshot));
+        }
+
+        if (!publishers.isEmpty()) {
+            TagChange change = new TagChange(path, value, tag.getVersion(), System.nanoTime(),
+                    context.getClock().nanoTime());
+            for (TagChangePublisher publisher : publishers) {
+                publisher.publish(change);
+            }
+        }
+    }
+
+    /**
+     * Recorded values of the tags matching the path pattern over the last seconds, oldest first
+     * per tag
+     */
+    public String getHistory(String pathPattern, long seconds) {
+        Pattern pattern = PublicTagUtil.pathPattern(pathPattern);
+        long since = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(seconds);
+        List<String> paths = new ArrayList<String>(publicTags.keySet());
+        Collections.sort(paths);
+
+        StringBuilder sb = new StringBuilder();
+        for (String path : paths) {
+            if (!pattern.matcher(path).matches()) {
+                continue;
+            }
+
+            TagHistory history = publicTags.get(path).getHistory();
+            if (history == null) {
+                sb.append(path).append(" history disabled\n");
+                continue;
+            }
+            List<TagHistory.Sample> samples = history.since(since);
+            sb.append(path).append(" samples:").append(samples.size())
+                .append(" recorded:").append(history.getRecordedCount()).append("\n");
+            for (TagHistory.Sample sample : samples) {
+                sb.append("  ").append(sample.toString()).append("\n");
+            }
+        }
+        return sb.length() == 0 ? "No public tag matches " + pathPattern : sb.toString();
+    }
+
+    /** Only one task per listener is queued, it takes the latest value when it runs */
+    private void dispatchCoalesced(String key, String path, Object value, PublicTagEventListener listener,
+            TagFilter.State filter) {
+        AtomicReference<Object> pending = filter.pendingValues.get(listener);
+        if (pending == null) {
+            pending = filter.pendingValues.computeIfAbsent(listener, l -> new AtomicReference<Object>());
+        }
+
+        if (pending.getAndSet(value) != null) {
+            filter.coalescedCount.incrementAndGet();
             return;
         }
+        AtomicReference<Object> slot = pending;
+        tagNotificationDispatcher.dispatch(key, () -> listener.onValueChanged(path, slot.getAndSet(null)));
+    }
+
+    /** Tags of a line share a key so e.g., QRCode and ACC of a bin are delivered in order */
+    static String dispatchKey(String path) {
+        int lineId = PublicTagUtil.lineIdOf(path);
+        return lineId < 0 ? path : PublicTagUtil.linePath(lineId);
+    }
+
+    /** Runtime statistics of the service, one item per line */
+    public String getStats() {
+        long events = 0;
+        long notified = 0;
+        long unchanged = 0;
+        long stale = 0;
+        for (PublicTag tag : publicTags.values()) {
+            events += tag.eventCount.get();
+            notified += tag.notifiedCount.get();
+            unchanged += tag.unchangedCount.get();
+            stale += tag.staleCount.get();
+        }
+
+        return "public tags:" + publicTags.size()
+            + " provisioned in ms:" + provisioningMillis
+            + " events:" + events
+            + " notified:" + notified
+            + " unchanged:" + unchanged
+            + " stale:" + stale
+            + " unrouted:" + unroutedEventCount.get()
+            + " listeners:" + publicTagEventListeners.size()
+            + " group listeners:" + publicTagGroupListeners.size() + "\n"
+            + tagNotificationDispatcher.toString()
+            + tagFilters.entrySet().stream()
+                .map(entry -> "\nfilter " + entry.getKey() + " " + entry.getValue().toString())
+                .collect(Collectors.joining())
+            + traceRecorders.values().stream().map(recorder -> "\n" + recorder.toString()).collect(Collectors.joining())
+            + publishers.stream().map(publisher -> "\n" + publisher.toString()).collect(Collectors.joining());
+    }
+
+    /**
+     * Stream of good value changes of the tags matching the path pattern, see TagChangePublisher.
+     * Close the publisher when done.
+     */
+    public TagChangePublisher changes(String pathPattern) {
+        TagChangePublisher publisher = new TagChangePublisher(pathPattern, publisherExecutor, tagTimer, logger) {
+            @Override
+            public void close() {
+                publishers.remove(this);
+                super.close();
+            }
+        };
+        publishers.add(publisher);
+        return publisher;
+    }
 
-        for (PublicTagEventListener listener: list) {
-            tagNotificationExecutor.execute(() -> listener.onValueChanged(path, value));
+    /**
+     * Record the tag changes of the line and the values written to its tags into a trace file,
+     * see TagTrace
+     * @throws IllegalArgumentException when the line is already recorded
+     */
+    public String startTraceRecording(int lineId, File file) throws IOException {
+        synchronized (traceRecorders) {
+            TagTraceRecorder recorder = traceRecorders.get(lineId);
+            if (recorder != null) {
+                throw new IllegalArgumentException("Line " + lineId + " is already recorded: " + recorder.toString());
+            }
+
+            recorder = new TagTraceRecorder(lineId, file, context.getClock(), logger);
+            String linePath = PublicTagUtil.linePath(lineId);
+            // tags of the line and of its Instruction and Weigh folders
+            recorder.start(Arrays.asList(
+                        changes(linePath + "*").bufferSize(TRACE_BUFFER_SIZE),
+                        changes(linePath + "*/*").bufferSize(TRACE_BUFFER_SIZE)));
+            traceRecorders.put(lineId, recorder);
+            return recorder.toString();
+        }
+    }
+
+    /** @return summary of the stopped recording */
+    public String stopTraceRecording(int lineId) {
+        TagTraceRecorder recorder;
+        synchronized (traceRecorders) {
+            recorder = traceRecorders.remove(lineId);
         }
+        if (recorder == null) {
+            return "Line " + lineId + " isn't recorded";
+        }
+
+        recorder.close();
+        return recorder.toString();
     }
 
     public void addEventListener(String path, PublicTagEventListener listener) {
-        Collection<PublicTagEventListener> list = publicTagEventListeners.get(path);
-        if (list == null) {
-            list = new HashSet<PublicTagEventListener>();
-            publicTagEventListeners.put(path, list);
+        publicTagEventListeners.add(path, listener);
+    }
+
+    /**
+     * Notify the listener with a snapshot of the group members whenever the trigger tag changes
+     * @throws RuntimeException when the trigger or a member isn't a public tag
+     */
+    public void addGroupListener(PublicTagGroup group, PublicTagGroupListener listener) throws RuntimeException {
+        if (getPublicTag(group.getTriggerPath()) == null) {
+            throw new RuntimeException("Undefined trigger tag:" + group.getTriggerPath());
+        }
+
+        List<String> memberPaths = group.getMemberPaths();
+        PublicTag[] members = new PublicTag[memberPaths.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = getPublicTag(memberPaths.get(i));
+            if (members[i] == null) {
+                throw new RuntimeException("Undefined tag:" + memberPaths.get(i) + " in group " + group.getName());
+            }
         }
 
-        list.add(listener);
+        publicTagGroupListeners.add(group.getTriggerPath(), new GroupRegistration(group, members, listener));
+    }
+
+    public void removeGroupListener(PublicTagGroup group, PublicTagGroupListener listener) {
+        publicTagGroupListeners.removeIf(group.getTriggerPath(),
+                registration -> registration.group == group && registration.listener == listener);
     }
 
     public void removeEventListener(String path, PublicTagEventListener listener) {
-        Collection<PublicTagEventListener> list = publicTagEventListeners.get(path);
-        if (list == null) {
+        publicTagEventListeners.remove(path, listener);
+    }
+
+    /**
+     * Write the batch, one writeAsync call per stage in order. Stages after a stage with a bad
+     * result are not written.
+     * @return per-tag results, completes exceptionally when a write call fails or times out
+     */
+    public CompletableFuture<TagWriteBatch.Result> writeAsync(TagWriteBatch batch) {
+        return writeStage(batch, 0, new TagWriteBatch.Result());
+    }
+
+    private CompletableFuture<TagWriteBatch.Result> writeStage(TagWriteBatch batch, int stage,
+            TagWriteBatch.Result result) {
+        if (stage == batch.stages.size()) {
+            return CompletableFuture.completedFuture(result);
+        }
+
+        List<TagWriteBatch.Write> writes = batch.stages.get(stage);
+        if (writes.isEmpty()) {
+            return writeStage(batch, stage + 1, result);
+        }
+
+        List<TagPath> paths = new ArrayList<TagPath>(writes.size());
+        List<Object> values = new ArrayList<Object>(writes.size());
+        for (TagWriteBatch.Write write : writes) {
+            paths.add(write.tag.getTagPath());
+            values.add(write.value);
+            recordWrite(write.tag.getPath(), write.value);
+        }
+
+        return tagManager.writeAsync(paths, values)
+            .orTimeout(PublicTag.WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .thenCompose(codes -> {
+                boolean good = true;
+                for (int i = 0; i < writes.size(); i++) {
+                    QualityCode code = codes.get(i);
+                    result.add(writes.get(i).tag.getPath(), code);
+                    good &= code.isGood();
+                }
+
+                if (!good) {
+                    for (int next = stage + 1; next < batch.stages.size(); next++) {
+                        result.skip(batch.stages.get(next).size());
+                    }
+                    return CompletableFuture.completedFuture(result);
+                }
+                return writeStage(batch, stage + 1, result);
+            });
+    }
+
+    /** Add the write to the trace of its line if it's recorded, every public tag write goes through here */
+    void recordWrite(String path, Object value) {
+        if (traceRecorders.isEmpty()) {
             return;
         }
 
-        list.remove(listener);
+        TagTraceRecorder recorder = traceRecorders.get(PublicTagUtil.lineIdOf(path));
+        if (recorder != null) {
+            recorder.recordWrite(path, value);
+        }
     }
 
     public GatewayTagManager getTagManager() {
@@ -0,0 +1,81 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.inductiveautomation.ignition.common.sqltags.model.types.DataType;
+import com.inductiveautomation.ignition.common.tags.config.types.TagObjectType;
+
+/**
+ * Folders and reference tags the gateway expects in the Public provider, in creation order
+ * (parents before their children).
+ */
+public class PublicTagSchema {
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    public static class Entry {
+        final String path;
+        final TagObjectType type;
+        final DataType dataType;
+
+        Entry(String path, TagObjectType type, DataType dataType) {
+            this.path = path;
+            this.type = type;
+            this.dataType = dataType;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public TagObjectType getType() {
+            return type;
+        }
+
+        /** Data type of a tag, null for folders */
+        public DataType getDataType() {
+            return dataType;
+        }
+    }
+
+    /** @param path folder path, a trailing "/" is dropped */
+    public PublicTagSchema folder(String path) {
+        String folder = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        entries.add(new Entry(folder, TagObjectType.Folder, null));
+        return this;
+    }
+
+    public PublicTagSchema tag(String path, DataType dataType) {
+        entries.add(new Entry(path, TagObjectType.AtomicTag, dataType));
+        return this;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /** [Public]Conveyance tag tree with a Bin/{line id} folder per line */
+    public static PublicTagSchema conveyance(List<Integer> lineIds) {
+        PublicTagSchema schema = new PublicTagSchema()
+            .folder(PublicTagUtil.CONVEYANCE_FOLDER)
+            .folder(PublicTagUtil.BIN_FOLDER);
+
+        for (int lineId : lineIds) {
+            schema.folder(PublicTagUtil.linePath(lineId))
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.QR_CODE), DataType.String)
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.DESTINATION), DataType.String)
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.RESULT), DataType.String)
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.ACC), DataType.Int8)
+                .folder(PublicTagUtil.binTagPath(lineId, PublicTagUtil.INSTRUCTION_FOLDER))
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.INSTRUCTION_PRESENT), DataType.String)
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.INSTRUCTION_DESTINATION_ID), DataType.Int8)
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.INSTRUCTION_DESIRED_DESTINATION), DataType.String)
+                .folder(PublicTagUtil.binTagPath(lineId, PublicTagUtil.WEIGH_FOLDER))
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.WEIGH_INFO), DataType.String)
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.WEIGH_WEIGHT), DataType.Int8)
+                .tag(PublicTagUtil.binTagPath(lineId, PublicTagUtil.WEIGH_DATETIME), DataType.DateTime);
+        }
+        return schema;
+    }
+}
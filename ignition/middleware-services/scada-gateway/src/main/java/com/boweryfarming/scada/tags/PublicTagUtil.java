@@ -1,4 +1,68 @@
 package com.boweryfarming.scada.tags;
 
+import java.util.regex.Pattern;
+
+/**
+ * Paths of the public conveyance tags. Each conveyor line has the same tag tree under
+ * [Public]Conveyance/Bin/{line id}/
+ */
 public class PublicTagUtil {
+    public static final String CONVEYANCE_FOLDER = "[Public]Conveyance/";
+    public static final String BIN_FOLDER = CONVEYANCE_FOLDER + "Bin/";
+
+    public static final String QR_CODE = "QRCode";
+    public static final String DESTINATION = "Destination";
+    public static final String RESULT = "Result";
+    public static final String ACC = "ACC";
+    public static final String INSTRUCTION_FOLDER = "Instruction";
+    public static final String INSTRUCTION_PRESENT = "Instruction/Present";
+    public static final String INSTRUCTION_DESTINATION_ID = "Instruction/DestinationId";
+    public static final String INSTRUCTION_DESIRED_DESTINATION = "Instruction/DesiredDestination";
+    public static final String WEIGH_FOLDER = "Weigh";
+    public static final String WEIGH_INFO = "Weigh/Info";
+    public static final String WEIGH_WEIGHT = "Weigh/Weight";
+    public static final String WEIGH_DATETIME = "Weigh/DateTime";
+
+    /** Folder of a line e.g., [Public]Conveyance/Bin/1/ */
+    public static String linePath(int lineId) {
+        return BIN_FOLDER + lineId + "/";
+    }
+
+    /** Tag of a line e.g., binTagPath(1, QR_CODE) is [Public]Conveyance/Bin/1/QRCode */
+    public static String binTagPath(int lineId, String tag) {
+        return linePath(lineId) + tag;
+    }
+
+    /**
+     * Line id of a tag path under [Public]Conveyance/Bin/
+     * @return -1 if the path isn't a line tag
+     */
+    public static int lineIdOf(String path) {
+        if (!path.startsWith(BIN_FOLDER)) {
+            return -1;
+        }
+
+        int end = path.indexOf('/', BIN_FOLDER.length());
+        try {
+            return Integer.parseInt(path.substring(BIN_FOLDER.length(), end < 0 ? path.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Case insensitive pattern of tag paths where "*" matches one path element e.g.,
+     * [Public]Conveyance/Bin/*&#47;QRCode
+     */
+    public static Pattern pathPattern(String pattern) {
+        StringBuilder sb = new StringBuilder();
+        String[] parts = pattern.split("\\*", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                sb.append("[^/]*");
+            }
+            sb.append(Pattern.quote(parts[i]));
+        }
+        return Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE);
+    }
 }
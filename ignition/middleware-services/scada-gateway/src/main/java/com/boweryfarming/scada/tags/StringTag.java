@@ -0,0 +1,17 @@
+package com.boweryfarming.scada.tags;
+
+import com.inductiveautomation.ignition.common.sqltags.model.types.DataType;
+
+/** String public tag */
+public class StringTag extends TypedTag {
+    StringTag(PublicTag tag) throws RuntimeException {
+        super(tag);
+        checkDataType(tag, "StringTag", DataType.String, DataType.Text);
+    }
+
+    /** @return the value, or null when there's no good value */
+    public String getString() {
+        Object value = goodValue();
+        return value == null ? null : value.toString();
+    }
+}
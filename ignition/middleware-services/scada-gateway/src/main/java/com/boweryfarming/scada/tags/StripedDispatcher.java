@@ -0,0 +1,162 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Runs tasks on striped single-consumer lanes.
+ *
+ * Each key is mapped to one lane, so tasks submitted with the same key run one at a time in
+ * submission order, while tasks of keys on other lanes run in parallel. Keys sharing a lane are
+ * serialized too; a task should hand long work off instead of holding its lane.
+ */
+public class StripedDispatcher {
+    private final String name;
+    private final Logger logger;
+    private final Lane[] lanes;
+    private volatile boolean closed = false;
+
+    static class Dispatch {
+        final Runnable task;
+        final long enqueuedAtNanos;
+
+        Dispatch(Runnable task, long enqueuedAtNanos) {
+            this.task = task;
+            this.enqueuedAtNanos = enqueuedAtNanos;
+        }
+    }
+
+    class Lane implements Runnable {
+        final int index;
+        final BlockingQueue<Dispatch> queue = new LinkedBlockingQueue<Dispatch>();
+        final Thread thread;
+
+        final AtomicLong dispatchedCount = new AtomicLong(0);
+        final AtomicLong failedCount = new AtomicLong(0);
+        final AtomicLong maxQueueDepth = new AtomicLong(0);
+        final AtomicLong totalLatencyNanos = new AtomicLong(0);
+        final AtomicLong maxLatencyNanos = new AtomicLong(0);
+        final AtomicLong maxRunNanos = new AtomicLong(0);
+
+        Lane(int index) {
+            this.index = index;
+            this.thread = new Thread(this, name + "-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void submit(Runnable task) {
+            queue.add(new Dispatch(task, System.nanoTime()));
+            updateMax(maxQueueDepth, queue.size());
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                Dispatch dispatch;
+                try {
+                    dispatch = queue.take();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+
+                long start = System.nanoTime();
+                long latency = start - dispatch.enqueuedAtNanos;
+                totalLatencyNanos.addAndGet(latency);
+                updateMax(maxLatencyNanos, latency);
+                try {
+                    dispatch.task.run();
+                } catch (RuntimeException e) {
+                    failedCount.incrementAndGet();
+                    logger.error(thread.getName() + " task failed: " + e.toString());
+                }
+                dispatchedCount.incrementAndGet();
+                updateMax(maxRunNanos, System.nanoTime() - start);
+            }
+
+            if (!queue.isEmpty()) {
+                logger.warn(thread.getName() + " stopped, dropped:" + queue.size());
+            }
+        }
+
+        @Override
+        public String toString() {
+            long dispatched = dispatchedCount.get();
+            return "lane " + index
+                + " depth:" + queue.size() + " (max:" + maxQueueDepth.get() + ")"
+                + " dispatched:" + dispatched
+                + " failed:" + failedCount.get()
+                + " latency(avg/max us):"
+                + (dispatched == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.get() / dispatched))
+                + "/" + TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get())
+                + " max run us:" + TimeUnit.NANOSECONDS.toMicros(maxRunNanos.get());
+        }
+    }
+
+    /**
+     * @param name prefix of the lane thread names
+     * @param laneCount number of lanes, i.e. the max number of keys dispatched in parallel
+     */
+    public StripedDispatcher(String name, int laneCount, Logger logger) {
+        this.name = name;
+        this.logger = logger;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    public void start() {
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+    }
+
+    /** Stop the lanes after their current task, pending tasks are dropped */
+    public void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            lane.thread.interrupt();
+        }
+    }
+
+    /** Run the task after every task submitted before with the same key */
+    public void dispatch(String key, Runnable task) {
+        if (closed) {
+            logger.warn(name + " closed, dropped task of " + key);
+            return;
+        }
+
+        laneOf(key).submit(task);
+    }
+
+    private Lane laneOf(String key) {
+        int hash = key.hashCode();
+        // spread the high bits, keys of the same prefix often differ only at the end
+        hash ^= (hash >>> 16);
+        return lanes[(hash & 0x7fffffff) % lanes.length];
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name + " dispatcher lanes:" + lanes.length);
+        for (Lane lane : lanes) {
+            sb.append("\n").append(lane.toString());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,46 @@
+package com.boweryfarming.scada.tags;
+
+/** Good value of a public tag as delivered by a {@link TagChangePublisher} */
+public class TagChange {
+    private final String path;
+    private final Object value;
+    private final long version;
+    private final long receivedAtNanos;
+    private final long clockNanos;
+
+    TagChange(String path, Object value, long version, long receivedAtNanos, long clockNanos) {
+        this.path = path;
+        this.value = value;
+        this.version = version;
+        this.receivedAtNanos = receivedAtNanos;
+        this.clockNanos = clockNanos;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    /** @see PublicTag#getVersion() */
+    public long getVersion() {
+        return version;
+    }
+
+    /** System.nanoTime() when the change event was received */
+    public long getReceivedAtNanos() {
+        return receivedAtNanos;
+    }
+
+    /** ScadaClock.nanoTime() when the change event was received, the time the services ran on */
+    public long getClockNanos() {
+        return clockNanos;
+    }
+
+    @Override
+    public String toString() {
+        return path + ":" + value + " (version " + version + ")";
+    }
+}
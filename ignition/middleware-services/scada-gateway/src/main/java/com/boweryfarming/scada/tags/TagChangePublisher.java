@@ -0,0 +1,462 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+
+/**
+ * Reactive stream of public tag changes matching a path or a path pattern, where "*" matches one
+ * path element, e.g. "[Public]Conveyance/Bin/*&#47;QRCode".
+ *
+ * Changes are delivered only as requested by the subscriber. Every subscription has its own
+ * bounded buffer; when a subscriber falls behind the oldest buffered change is dropped (and
+ * counted), so a slow subscriber never holds up the tag notifications or grows memory. Operators
+ * are set before subscribing:
+ * <ul>
+ * <li>{@link #conflate()} keeps only the latest change per path</li>
+ * <li>{@link #sample(long)} releases the latest change per path once per period</li>
+ * <li>{@link #window(int, long)} delivers changes in lists by count or age</li>
+ * </ul>
+ * Subscribers are called on the publisher executor, one call at a time per subscription.
+ */
+public class TagChangePublisher implements Flow.Publisher<TagChange> {
+    static final int DEFAULT_BUFFER_SIZE = 256;
+
+    private final String pathPattern;
+    private final Pattern regex;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final Logger logger;
+    private final List<ChangeSubscription<?>> subscriptions = new CopyOnWriteArrayList<ChangeSubscription<?>>();
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private boolean conflate = false;
+    private long samplePeriodMs = 0;
+    private volatile boolean closed = false;
+
+    TagChangePublisher(String pathPattern, Executor executor, ScheduledExecutorService timer, Logger logger) {
+        this.pathPattern = pathPattern;
+        this.regex = pathPattern.indexOf('*') < 0 ? null : PublicTagUtil.pathPattern(pathPattern);
+        this.executor = executor;
+        this.timer = timer;
+        this.logger = logger;
+    }
+
+    /** Max changes buffered per subscription */
+    public TagChangePublisher bufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive:" + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /** Replace a buffered change of a path by a newer one instead of queueing both */
+    public TagChangePublisher conflate() {
+        this.conflate = true;
+        return this;
+    }
+
+    /** Release the latest change per path once every periodMs, implies {@link #conflate()} */
+    public TagChangePublisher sample(long periodMs) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("Sample period must be positive:" + periodMs);
+        }
+        this.conflate = true;
+        this.samplePeriodMs = periodMs;
+        return this;
+    }
+
+    /**
+     * Changes in lists of up to maxSize, a list is delivered when it's full or its oldest change
+     * is maxAgeMs old
+     */
+    public Flow.Publisher<List<TagChange>> window(int maxSize, long maxAgeMs) {
+        if (maxSize <= 0 || maxAgeMs <= 0) {
+            throw new IllegalArgumentException("Invalid window size:" + maxSize + " age:" + maxAgeMs);
+        }
+        return subscriber -> register(new WindowSubscription(subscriber, maxSize, maxAgeMs));
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super TagChange> subscriber) {
+        register(new ItemSubscription(subscriber));
+    }
+
+    private void register(ChangeSubscription<?> subscription) {
+        if (closed) {
+            subscription.subscriber.onSubscribe(subscription);
+            subscription.complete();
+            return;
+        }
+
+        subscriptions.add(subscription);
+        subscription.subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    public String getPathPattern() {
+        return pathPattern;
+    }
+
+    boolean matches(String path) {
+        return regex == null ? pathPattern.equalsIgnoreCase(path) : regex.matcher(path).matches();
+    }
+
+    /** Called on the tag notification path, never blocks on subscribers */
+    void publish(TagChange change) {
+        for (ChangeSubscription<?> subscription : subscriptions) {
+            subscription.offer(change);
+        }
+    }
+
+    /** Complete every subscription after its buffered changes */
+    public void close() {
+        closed = true;
+        for (ChangeSubscription<?> subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("publisher " + pathPattern
+                + (conflate ? " conflate" : "")
+                + (samplePeriodMs > 0 ? " sample ms:" + samplePeriodMs : "")
+                + " subscriptions:" + subscriptions.size());
+        for (ChangeSubscription<?> subscription : subscriptions) {
+            sb.append("\n  ").append(subscription.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Buffer and demand of one subscriber. Items are emitted by a drain loop that runs on the
+     * executor, at most one at a time per subscription.
+     */
+    abstract class ChangeSubscription<T> implements Flow.Subscription {
+        final Flow.Subscriber<? super T> subscriber;
+        final AtomicLong requested = new AtomicLong(0);
+        final AtomicInteger wip = new AtomicInteger(0);
+        volatile boolean cancelled = false;
+        volatile boolean completed = false;
+        /** signalled to the subscriber by the drain loop, never on the caller of request */
+        volatile Throwable failure;
+        ScheduledFuture<?> sampleTick;
+        ScheduledFuture<?> drainTick;
+
+        // guarded by this
+        final ArrayDeque<TagChange> queue = new ArrayDeque<TagChange>();
+        final LinkedHashMap<String, TagChange> latest = new LinkedHashMap<String, TagChange>();
+        /** changes released by the last sample tick */
+        int released = 0;
+
+        final AtomicLong offeredCount = new AtomicLong(0);
+        final AtomicLong deliveredCount = new AtomicLong(0);
+        final AtomicLong droppedCount = new AtomicLong(0);
+        final AtomicLong conflatedCount = new AtomicLong(0);
+
+        ChangeSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+            if (cancelled) {
+                return;
+            }
+            if (samplePeriodMs > 0) {
+                sampleTick = timer.scheduleAtFixedRate(this::releaseSample,
+                        samplePeriodMs, samplePeriodMs, TimeUnit.MILLISECONDS);
+            }
+            long period = drainPeriodMs();
+            if (period > 0) {
+                drainTick = timer.scheduleAtFixedRate(this::drain, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /** period of draining without a new change e.g., for time based items, 0 for none */
+        long drainPeriodMs() {
+            return 0;
+        }
+
+        void releaseSample() {
+            synchronized (this) {
+                released = buffered();
+            }
+            drain();
+        }
+
+        void stopTicks() {
+            if (sampleTick != null) {
+                sampleTick.cancel(false);
+            }
+            if (drainTick != null) {
+                drainTick.cancel(false);
+            }
+        }
+
+        void offer(TagChange change) {
+            if (cancelled || completed || failure != null || !matches(change.getPath())) {
+                return;
+            }
+            offeredCount.incrementAndGet();
+
+            synchronized (this) {
+                if (conflate) {
+                    if (latest.remove(change.getPath()) != null) {
+                        conflatedCount.incrementAndGet();
+                    }
+                    latest.put(change.getPath(), change);
+                    if (latest.size() > bufferSize) {
+                        Iterator<TagChange> eldest = latest.values().iterator();
+                        eldest.next();
+                        eldest.remove();
+                        droppedCount.incrementAndGet();
+                    }
+                } else {
+                    if (queue.size() == bufferSize) {
+                        queue.poll();
+                        droppedCount.incrementAndGet();
+                    }
+                    queue.add(change);
+                }
+            }
+
+            if (samplePeriodMs == 0) {
+                drain();
+            }
+        }
+
+        int buffered() {
+            return conflate ? latest.size() : queue.size();
+        }
+
+        TagChange peekBuffered() {
+            if (conflate) {
+                return latest.isEmpty() ? null : latest.values().iterator().next();
+            }
+            return queue.peek();
+        }
+
+        /** next buffered change, null when none is released */
+        TagChange pollBuffered() {
+            if (samplePeriodMs > 0) {
+                if (released == 0) {
+                    return null;
+                }
+                released--;
+            }
+
+            if (conflate) {
+                Iterator<TagChange> eldest = latest.values().iterator();
+                if (!eldest.hasNext()) {
+                    return null;
+                }
+                TagChange change = eldest.next();
+                eldest.remove();
+                return change;
+            }
+            return queue.poll();
+        }
+
+        /** next item to emit, null when none is ready; called holding the lock */
+        abstract T next();
+
+        /** count of changes in an item */
+        abstract int changesOf(T item);
+
+        void drain() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::drainLoop);
+            }
+        }
+
+        private void drainLoop() {
+            int missed = 1;
+            do {
+                if (failure != null && !cancelled) {
+                    cancelled = true;
+                    synchronized (this) {
+                        queue.clear();
+                        latest.clear();
+                    }
+                    subscriber.onError(failure);
+                }
+
+                long demand = requested.get();
+                long emitted = 0;
+                while (emitted != demand && !cancelled && failure == null) {
+                    T item;
+                    synchronized (this) {
+                        item = next();
+                    }
+                    if (item == null) {
+                        break;
+                    }
+
+                    try {
+                        subscriber.onNext(item);
+                    } catch (RuntimeException e) {
+                        logger.error("Subscriber of " + pathPattern + " failed, cancelled: " + e.toString());
+                        cancel();
+                        break;
+                    }
+                    deliveredCount.addAndGet(changesOf(item));
+                    emitted++;
+                }
+
+                if (emitted > 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+
+                if (completed && !cancelled) {
+                    boolean empty;
+                    synchronized (this) {
+                        empty = buffered() == 0;
+                    }
+                    if (empty) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // rule 3.9, onError is signalled by the drain loop so it never overlaps an onNext
+                if (failure == null) {
+                    failure = new IllegalArgumentException("Non-positive request:" + n);
+                }
+                stopTicks();
+                subscriptions.remove(this);
+                drain();
+                return;
+            }
+
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            stopTicks();
+            subscriptions.remove(this);
+        }
+
+        /** Complete after the buffered changes are delivered, sampled changes are released now */
+        void complete() {
+            completed = true;
+            stopTicks();
+            synchronized (this) {
+                released = buffered();
+            }
+            subscriptions.remove(this);
+            drain();
+        }
+
+        @Override
+        public String toString() {
+            int buffered;
+            synchronized (this) {
+                buffered = buffered();
+            }
+            return "requested:" + requested.get()
+                + " buffered:" + buffered
+                + " offered:" + offeredCount.get()
+                + " delivered:" + deliveredCount.get()
+                + " conflated:" + conflatedCount.get()
+                + " dropped:" + droppedCount.get();
+        }
+    }
+
+    class ItemSubscription extends ChangeSubscription<TagChange> {
+        ItemSubscription(Flow.Subscriber<? super TagChange> subscriber) {
+            super(subscriber);
+        }
+
+        @Override
+        TagChange next() {
+            return pollBuffered();
+        }
+
+        @Override
+        int changesOf(TagChange item) {
+            return 1;
+        }
+    }
+
+    class WindowSubscription extends ChangeSubscription<List<TagChange>> {
+        final int maxSize;
+        final long maxAgeNanos;
+        final long maxAgeMs;
+
+        WindowSubscription(Flow.Subscriber<? super List<TagChange>> subscriber, int maxSize, long maxAgeMs) {
+            super(subscriber);
+            this.maxSize = maxSize;
+            this.maxAgeMs = maxAgeMs;
+            this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+        }
+
+        @Override
+        long drainPeriodMs() {
+            // a window is delivered at most half its age late
+            return Math.max(1, maxAgeMs / 2);
+        }
+
+        @Override
+        List<TagChange> next() {
+            TagChange oldest = peekBuffered();
+            if (oldest == null) {
+                return null;
+            }
+
+            int available = samplePeriodMs > 0 ? released : buffered();
+            boolean full = available >= maxSize;
+            boolean old = System.nanoTime() - oldest.getReceivedAtNanos() >= maxAgeNanos;
+            if (available == 0 || (!full && !old && !completed)) {
+                return null;
+            }
+
+            List<TagChange> window = new ArrayList<TagChange>(Math.min(available, maxSize));
+            while (window.size() < maxSize) {
+                TagChange change = pollBuffered();
+                if (change == null) {
+                    break;
+                }
+                window.add(change);
+            }
+            return window;
+        }
+
+        @Override
+        int changesOf(List<TagChange> item) {
+            return item.size();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Notification filter of a public tag, see {@link PublicTagManagerService#setTagFilter}.
+ * <ul>
+ * <li>deadband: numeric changes smaller than an absolute or a percent of the last delivered value
+ * are suppressed</li>
+ * <li>minimum interval: a change within the interval of the last delivered one is held back and
+ * delivered when the interval ends, replaced by any newer change meanwhile, so the last value is
+ * never lost</li>
+ * <li>coalescing: an event listener still waiting for a value is handed the newer value instead
+ * of getting a second task</li>
+ * </ul>
+ * Deadband and interval apply to every listener of the tag, coalescing to event listeners only.
+ */
+public class TagFilter {
+    private double deadband = 0;
+    private double percentDeadband = 0;
+    private long minIntervalMs = 0;
+    private boolean coalesce = false;
+
+    /** Suppress numeric changes smaller than the absolute deadband */
+    public TagFilter deadband(double deadband) {
+        this.deadband = deadband;
+        return this;
+    }
+
+    /** Suppress numeric changes smaller than percent of the last delivered value */
+    public TagFilter percentDeadband(double percent) {
+        this.percentDeadband = percent;
+        return this;
+    }
+
+    /** Deliver at most one change per interval, the latest one */
+    public TagFilter minInterval(long minIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+        return this;
+    }
+
+    /** Latest value wins for event listeners that are behind */
+    public TagFilter coalesce() {
+        this.coalesce = true;
+        return this;
+    }
+
+    public boolean isCoalescing() {
+        return coalesce;
+    }
+
+    /**
+     * Parse a filter spec e.g., "deadband:5,interval:200,coalesce"; keys are deadband, percent,
+     * interval (ms) and coalesce
+     * @throws IllegalArgumentException when the spec is malformed
+     */
+    public static TagFilter parse(String spec) throws IllegalArgumentException {
+        TagFilter filter = new TagFilter();
+        for (String item : spec.split(",")) {
+            String[] kv = item.trim().split(":", 2);
+            String key = kv[0].trim().toLowerCase();
+            if (key.isEmpty()) {
+                continue;
+            }
+            if (key.equals("coalesce") && kv.length == 1) {
+                filter.coalesce();
+                continue;
+            }
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Invalid tag filter item:" + item);
+            }
+
+            try {
+                switch (key) {
+                    case "deadband":
+                        filter.deadband(Double.parseDouble(kv[1].trim()));
+                        break;
+                    case "percent":
+                        filter.percentDeadband(Double.parseDouble(kv[1].trim()));
+                        break;
+                    case "interval":
+                        filter.minInterval(Long.parseLong(kv[1].trim()));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown tag filter item:" + item);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid tag filter item:" + item);
+            }
+        }
+        return filter;
+    }
+
+    @Override
+    public String toString() {
+        return "deadband:" + deadband + " percent:" + percentDeadband
+            + " min interval ms:" + minIntervalMs + (coalesce ? " coalesce" : "");
+    }
+
+    /** Filter state of one tag */
+    static class State {
+        final TagFilter filter;
+        final AtomicLong receivedCount = new AtomicLong(0);
+        final AtomicLong deadbandCount = new AtomicLong(0);
+        final AtomicLong deferredCount = new AtomicLong(0);
+        final AtomicLong deliveredCount = new AtomicLong(0);
+        final AtomicLong coalescedCount = new AtomicLong(0);
+        /** pending value per event listener, only when coalescing */
+        final ConcurrentHashMap<PublicTagEventListener, AtomicReference<Object>> pendingValues =
+            new ConcurrentHashMap<PublicTagEventListener, AtomicReference<Object>>();
+
+        // guarded by this
+        private Object lastDelivered = null;
+        private long lastDeliveredNanos = 0;
+        private boolean delivered = false;
+        private Object held = null;
+        private ScheduledFuture<?> flush = null;
+
+        State(TagFilter filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * @return true when the value is to be delivered now; a value held back by the interval
+         * is handed to schedule to be released through {@link #release(long)} later
+         */
+        synchronized boolean accept(Object value, long nowNanos, FlushScheduler schedule) {
+            receivedCount.incrementAndGet();
+            if (delivered && withinDeadband(value)) {
+                if (held != null) {
+                    // still the latest value, it replaces the held one
+                    held = value;
+                    deferredCount.incrementAndGet();
+                } else {
+                    deadbandCount.incrementAndGet();
+                }
+                return false;
+            }
+
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(filter.minIntervalMs);
+            if (delivered && intervalNanos > 0 && nowNanos - lastDeliveredNanos < intervalNanos) {
+                if (held != null) {
+                    // replaced by the newer value
+                    deferredCount.incrementAndGet();
+                }
+                held = value;
+                if (flush == null) {
+                    flush = schedule.schedule(lastDeliveredNanos + intervalNanos - nowNanos);
+                }
+                return false;
+            }
+
+            if (held != null) {
+                deferredCount.incrementAndGet();
+                held = null;
+            }
+            markDelivered(value, nowNanos);
+            return true;
+        }
+
+        /** @return the held value to deliver now, null when there's none */
+        synchronized Object release(long nowNanos) {
+            flush = null;
+            Object value = held;
+            held = null;
+            if (value != null) {
+                markDelivered(value, nowNanos);
+            }
+            return value;
+        }
+
+        synchronized void cancel() {
+            if (flush != null) {
+                flush.cancel(false);
+                flush = null;
+            }
+            held = null;
+        }
+
+        private void markDelivered(Object value, long nowNanos) {
+            lastDelivered = value;
+            lastDeliveredNanos = nowNanos;
+            delivered = true;
+            deliveredCount.incrementAndGet();
+        }
+
+        private boolean withinDeadband(Object value) {
+            if (!(value instanceof Number) || !(lastDelivered instanceof Number)) {
+                return false;
+            }
+
+            double last = ((Number) lastDelivered).doubleValue();
+            double change = Math.abs(((Number) value).doubleValue() - last);
+            if (filter.deadband > 0 && change < filter.deadband) {
+                return true;
+            }
+            return filter.percentDeadband > 0 && change < Math.abs(last) * filter.percentDeadband / 100;
+        }
+
+        @Override
+        public String toString() {
+            return filter.toString()
+                + " received:" + receivedCount.get()
+                + " suppressed(deadband/interval):" + deadbandCount.get() + "/" + deferredCount.get()
+                + " delivered:" + deliveredCount.get()
+                + " coalesced:" + coalescedCount.get();
+        }
+    }
+
+    interface FlushScheduler {
+        ScheduledFuture<?> schedule(long delayNanos);
+    }
+}
@@ -0,0 +1,145 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.inductiveautomation.ignition.common.model.values.QualifiedValue;
+import com.inductiveautomation.ignition.common.model.values.QualityCode;
+
+/**
+ * Most recent values of a tag in a fixed size ring buffer.
+ *
+ * The buffer is allocated once: numbers, booleans and dates are kept in a long array, timestamps
+ * and quality codes in primitive arrays, and anything else (e.g. strings) by reference. Recording
+ * doesn't allocate, so the history can stay on in production and tell the last seconds of a line
+ * without asking the historian or the database.
+ */
+public class TagHistory {
+    static final byte KIND_NULL = 0;
+    static final byte KIND_LONG = 1;
+    static final byte KIND_DOUBLE = 2;
+    static final byte KIND_BOOLEAN = 3;
+    static final byte KIND_DATE = 4;
+    static final byte KIND_OBJECT = 5;
+
+    private final int capacity;
+    private final long[] timestamps;
+    private final int[] qualities;
+    private final byte[] kinds;
+    private final long[] numbers;
+    private final Object[] objects;
+    /** count of recorded samples, the next one goes to recorded % capacity */
+    private long recorded = 0;
+
+    public static class Sample {
+        private final Object value;
+        private final QualityCode quality;
+        private final long timestamp;
+
+        Sample(Object value, QualityCode quality, long timestamp) {
+            this.value = value;
+            this.quality = quality;
+            this.timestamp = timestamp;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public QualityCode getQuality() {
+            return quality;
+        }
+
+        /** epoch millis of the value */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return new Date(timestamp).toInstant().toString() + " " + value + " (" + quality + ")";
+        }
+    }
+
+    public TagHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive:" + capacity);
+        }
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.qualities = new int[capacity];
+        this.kinds = new byte[capacity];
+        this.numbers = new long[capacity];
+        this.objects = new Object[capacity];
+    }
+
+    synchronized void record(QualifiedValue qv) {
+        int i = (int) (recorded % capacity);
+        Date timestamp = qv.getTimestamp();
+        timestamps[i] = timestamp == null ? System.currentTimeMillis() : timestamp.getTime();
+        qualities[i] = qv.getQuality() == null ? QualityCode.Bad.getCode() : qv.getQuality().getCode();
+        objects[i] = null;
+
+        Object value = qv.getValue();
+        if (value == null) {
+            kinds[i] = KIND_NULL;
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            kinds[i] = KIND_LONG;
+            numbers[i] = ((Number) value).longValue();
+        } else if (value instanceof Double || value instanceof Float) {
+            kinds[i] = KIND_DOUBLE;
+            numbers[i] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            kinds[i] = KIND_BOOLEAN;
+            numbers[i] = ((Boolean) value) ? 1 : 0;
+        } else if (value instanceof Date) {
+            kinds[i] = KIND_DATE;
+            numbers[i] = ((Date) value).getTime();
+        } else {
+            kinds[i] = KIND_OBJECT;
+            objects[i] = value;
+        }
+        recorded++;
+    }
+
+    /** Samples since epoch millis, oldest first */
+    public synchronized List<Sample> since(long sinceMillis) {
+        List<Sample> samples = new ArrayList<Sample>();
+        long first = Math.max(0, recorded - capacity);
+        for (long n = first; n < recorded; n++) {
+            int i = (int) (n % capacity);
+            if (timestamps[i] >= sinceMillis) {
+                samples.add(new Sample(valueAt(i), QualityCode.of(qualities[i]), timestamps[i]));
+            }
+        }
+        return samples;
+    }
+
+    private Object valueAt(int i) {
+        switch (kinds[i]) {
+            case KIND_LONG:
+                return numbers[i];
+            case KIND_DOUBLE:
+                return Double.longBitsToDouble(numbers[i]);
+            case KIND_BOOLEAN:
+                return numbers[i] != 0;
+            case KIND_DATE:
+                return new Date(numbers[i]);
+            case KIND_OBJECT:
+                return objects[i];
+            default:
+                return null;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Count of samples recorded since the history was enabled, including overwritten ones */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+}
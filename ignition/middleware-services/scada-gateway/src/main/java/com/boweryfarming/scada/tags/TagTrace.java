@@ -0,0 +1,404 @@
+package com.boweryfarming.scada.tags;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact binary trace of the public tag events of a conveyor line, recorded by
+ * {@link TagTraceRecorder} and replayed by the simulator.
+ *
+ * Layout: int magic, int version, long start epoch millis, int line id, a virtual clock boolean
+ * byte (since version 2, version 1 traces are on the wall clock), then records starting with a kind
+ * byte. Times are on the ScadaClock of the recording, a virtual clock when the header says so. A PATH record (kind, varint path id, UTF path) defines a path id before its first
+ * event. CHANGE and WRITE records are the kind, the zigzag varint nanos since the previous event,
+ * the varint path id and a typed value: a type byte then a zigzag varint long, a double, a UTF
+ * string, a boolean byte or a date as epoch millis. A truncated last record ends the trace.
+ */
+public class TagTrace {
+    static final int MAGIC = 0x42535452;
+    static final int VERSION = 2;
+    /** Trace files, relative to the gateway data dir */
+    public static final String TRACE_PATH = "bowery/traces";
+    public static final String TRACE_SUFFIX = ".trace";
+
+    static final byte RECORD_PATH = 1;
+    static final byte RECORD_CHANGE = 2;
+    static final byte RECORD_WRITE = 3;
+
+    static final byte VALUE_NULL = 0;
+    static final byte VALUE_LONG = 1;
+    static final byte VALUE_DOUBLE = 2;
+    static final byte VALUE_STRING = 3;
+    static final byte VALUE_BOOLEAN = 4;
+    static final byte VALUE_DATE = 5;
+
+    public enum Kind {
+        /** value change of a public tag */
+        CHANGE,
+        /** value written to a public tag by the gateway, e.g. a routing instruction */
+        WRITE
+    }
+
+    public static class Event {
+        private final Kind kind;
+        private final long offsetNanos;
+        private final String path;
+        private final Object value;
+
+        Event(Kind kind, long offsetNanos, String path, Object value) {
+            this.kind = kind;
+            this.offsetNanos = offsetNanos;
+            this.path = path;
+            this.value = value;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /** Time of the event since the recording started */
+        public long getOffsetNanos() {
+            return offsetNanos;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /** Long, Double, String, Boolean, Date or null */
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return TimeUnit.NANOSECONDS.toMillis(offsetNanos) + "ms " + kind + " " + path + ":" + value;
+        }
+    }
+
+    /**
+     * Trace file in the traces dir of the gateway
+     * @param name file name without dirs, the suffix is added if missing
+     */
+    public static File traceFile(File dataDir, String name) {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid trace name:" + name);
+        }
+        return new File(new File(dataDir, TRACE_PATH), name.endsWith(TRACE_SUFFIX) ? name : name + TRACE_SUFFIX);
+    }
+
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final long startNanos;
+        private final Map<String, Integer> pathIds = new HashMap<String, Integer>();
+        private long lastNanos;
+        private long eventCount = 0;
+
+        /**
+         * @param startNanos clock nanos of the recording start, event offsets are relative to it
+         * @param startMillis clock epoch millis of the recording start
+         * @param virtualClock the times are on a virtual clock
+         */
+        public Writer(File file, int lineId, long startNanos, long startMillis, boolean virtualClock)
+                throws IOException {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create trace dir " + dir);
+            }
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            this.startNanos = startNanos;
+            this.lastNanos = startNanos;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(startMillis);
+            out.writeInt(lineId);
+            out.writeBoolean(virtualClock);
+        }
+
+        public synchronized void write(Kind kind, String path, Object value, long atNanos) throws IOException {
+            Integer id = pathIds.get(path);
+            if (id == null) {
+                id = pathIds.size();
+                pathIds.put(path, id);
+                out.writeByte(RECORD_PATH);
+                writeVarLong(out, id);
+                out.writeUTF(path);
+            }
+
+            out.writeByte(kind == Kind.CHANGE ? RECORD_CHANGE : RECORD_WRITE);
+            writeVarLong(out, zigzag(atNanos - lastNanos));
+            writeVarLong(out, id);
+            writeValue(out, value);
+            lastNanos = atNanos;
+            eventCount++;
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        public synchronized long getEventCount() {
+            return eventCount;
+        }
+
+        /** Bytes written so far */
+        public synchronized long size() {
+            return out.size();
+        }
+
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startMillis;
+        private final int lineId;
+        private final boolean virtualClock;
+        private final List<String> paths = new ArrayList<String>();
+        private long offsetNanos = 0;
+
+        public Reader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a tag trace: " + file);
+                }
+                int version = in.readInt();
+                if (version < 1 || version > VERSION) {
+                    throw new IOException("Unsupported tag trace version " + version + ": " + file);
+                }
+                this.startMillis = in.readLong();
+                this.lineId = in.readInt();
+                this.virtualClock = version >= 2 && in.readBoolean();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /** Epoch millis when the recording started */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public int getLineId() {
+            return lineId;
+        }
+
+        /** Recorded on a virtual clock, offsets are virtual time */
+        public boolean isVirtualClock() {
+            return virtualClock;
+        }
+
+        /** @return the next event, null at the end of the trace */
+        public Event next() throws IOException {
+            try {
+                while (true) {
+                    int record = in.read();
+                    if (record < 0) {
+                        return null;
+                    }
+
+                    if (record == RECORD_PATH) {
+                        int id = (int) readVarLong(in);
+                        String path = in.readUTF();
+                        if (id != paths.size()) {
+                            throw new IOException("Tag trace path id out of sequence: " + id);
+                        }
+                        paths.add(path);
+                    } else if (record == RECORD_CHANGE || record == RECORD_WRITE) {
+                        offsetNanos += unzigzag(readVarLong(in));
+                        int id = (int) readVarLong(in);
+                        if (id < 0 || id >= paths.size()) {
+                            throw new IOException("Undefined tag trace path id: " + id);
+                        }
+                        Object value = readValue(in);
+                        return new Event(record == RECORD_CHANGE ? Kind.CHANGE : Kind.WRITE, offsetNanos,
+                                paths.get(id), value);
+                    } else {
+                        throw new IOException("Unknown tag trace record: " + record);
+                    }
+                }
+            } catch (EOFException e) {
+                // torn last record
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            out.writeByte(VALUE_LONG);
+            writeVarLong(out, zigzag(((Number) value).longValue()));
+        } else if (value instanceof Number) {
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Date) {
+            out.writeByte(VALUE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else {
+            out.writeByte(VALUE_STRING);
+            out.writeUTF(value.toString());
+        }
+    }
+
+    static Object readValue(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        switch (type) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_LONG:
+                return unzigzag(readVarLong(in));
+            case VALUE_DOUBLE:
+                return in.readDouble();
+            case VALUE_BOOLEAN:
+                return in.readBoolean();
+            case VALUE_DATE:
+                return new Date(in.readLong());
+            case VALUE_STRING:
+                return in.readUTF();
+            default:
+                throw new IOException("Unknown tag trace value type: " + type);
+        }
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed tag trace varint");
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Event counts, scan to instruction latency and routing decisions of a trace, to compare a
+     * recording of production with a recording of its replay
+     */
+    public static String summary(File file) throws IOException {
+        Map<String, Integer> changesByTag = new TreeMap<String, Integer>();
+        Map<String, Integer> decisions = new TreeMap<String, Integer>();
+        List<Long> latencies = new ArrayList<Long>();
+        long changes = 0;
+        long writes = 0;
+        long lastOffset = 0;
+        long scannedAt = -1;
+        int lineId;
+        long startMillis;
+        boolean virtualClock;
+
+        try (Reader reader = new Reader(file)) {
+            lineId = reader.getLineId();
+            startMillis = reader.getStartMillis();
+            virtualClock = reader.isVirtualClock();
+            String linePath = PublicTagUtil.linePath(lineId);
+            Event event;
+            while ((event = reader.next()) != null) {
+                lastOffset = Math.max(lastOffset, event.getOffsetNanos());
+                String tag = event.getPath().regionMatches(true, 0, linePath, 0, linePath.length())
+                    ? event.getPath().substring(linePath.length()) : event.getPath();
+
+                if (event.getKind() == Kind.CHANGE) {
+                    changes++;
+                    changesByTag.merge(tag, 1, Integer::sum);
+                    if (tag.equalsIgnoreCase(PublicTagUtil.QR_CODE)) {
+                        scannedAt = event.getOffsetNanos();
+                    }
+                } else {
+                    writes++;
+                    if (tag.equalsIgnoreCase(PublicTagUtil.INSTRUCTION_DESIRED_DESTINATION)) {
+                        decisions.merge(String.valueOf(event.getValue()), 1, Integer::sum);
+                    } else if (tag.equalsIgnoreCase(PublicTagUtil.INSTRUCTION_PRESENT)) {
+                        if (Long.valueOf(0).equals(event.getValue())) {
+                            decisions.merge("(no instruction)", 1, Integer::sum);
+                        }
+                        if (scannedAt >= 0) {
+                            latencies.add(event.getOffsetNanos() - scannedAt);
+                            scannedAt = -1;
+                        }
+                    }
+                }
+            }
+        }
+
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+
+        return "trace " + file.getName() + " line:" + lineId + " started:" + new Date(startMillis)
+            + " clock:" + (virtualClock ? "virtual" : "wall")
+            + " duration s:" + TimeUnit.NANOSECONDS.toSeconds(lastOffset) + "\n"
+            + "changes:" + changes + " " + changesByTag + "\n"
+            + "instruction writes:" + writes + " decisions:" + decisions + "\n"
+            + "scan to instruction ms p50/p90/p99/max:"
+            + millis(percentile(sorted, 50)) + "/" + millis(percentile(sorted, 90)) + "/"
+            + millis(percentile(sorted, 99)) + "/" + millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,129 @@
+package com.boweryfarming.scada.tags;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.boweryfarming.scada.ScadaClock;
+
+import org.slf4j.Logger;
+
+/**
+ * Records the public tag changes of a conveyor line and the values the gateway writes to them into
+ * a {@link TagTrace} file.
+ *
+ * Changes come from publishers of the line subtree and are stamped with their receive time; writes
+ * are stamped when they're sent, so the trace shows the decision latency of the gateway. Times are
+ * on the services' {@link ScadaClock}, so a recording under a virtual clock follows its timeline.
+ */
+class TagTraceRecorder implements Flow.Subscriber<TagChange> {
+    static final long CLOSE_TIMEOUT_MS = 3000;
+
+    private final int lineId;
+    private final File file;
+    private final ScadaClock clock;
+    private final Logger logger;
+    private final TagTrace.Writer writer;
+    private final List<TagChangePublisher> publishers = new ArrayList<TagChangePublisher>();
+    private CountDownLatch completed;
+    private volatile boolean closed = false;
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    TagTraceRecorder(int lineId, File file, ScadaClock clock, Logger logger) throws IOException {
+        this.lineId = lineId;
+        this.file = file;
+        this.clock = clock;
+        this.logger = logger;
+        this.writer = new TagTrace.Writer(file, lineId, clock.nanoTime(), clock.currentTimeMillis(),
+                clock.isVirtual());
+    }
+
+    /** Record the changes of the publishers, all of them are closed with the recorder */
+    void start(List<TagChangePublisher> linePublishers) {
+        publishers.addAll(linePublishers);
+        completed = new CountDownLatch(publishers.size());
+        for (TagChangePublisher publisher : publishers) {
+            publisher.subscribe(this);
+        }
+        logger.info("Recording line " + lineId + " to " + file);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(TagChange change) {
+        record(TagTrace.Kind.CHANGE, change.getPath(), change.getValue(), change.getClockNanos());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.error("Trace of line " + lineId + " lost changes: " + throwable.toString());
+        completed.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+        completed.countDown();
+    }
+
+    void recordWrite(String path, Object value) {
+        record(TagTrace.Kind.WRITE, path, value, clock.nanoTime());
+    }
+
+    private void record(TagTrace.Kind kind, String path, Object value, long atNanos) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            writer.write(kind, path, value, atNanos);
+        } catch (IOException e) {
+            if (failedCount.getAndIncrement() == 0) {
+                logger.error("Failed to record trace of line " + lineId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Stop recording after the buffered changes and close the file */
+    void close() {
+        for (TagChangePublisher publisher : publishers) {
+            publisher.close();
+        }
+        try {
+            if (!completed.await(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Trace of line " + lineId + " closed before its buffered changes were recorded");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        closed = true;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.error("Failed to close trace " + file + ": " + e.getMessage());
+        }
+        logger.info("Recorded line " + lineId + ": " + toString());
+    }
+
+    int getLineId() {
+        return lineId;
+    }
+
+    @Override
+    public String toString() {
+        return "trace line " + lineId + " " + file.getName()
+            + " events:" + writer.getEventCount()
+            + " bytes:" + writer.size()
+            + " failed:" + failedCount.get()
+            + " elapsed s:" + TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime() - writer.getStartNanos());
+    }
+}
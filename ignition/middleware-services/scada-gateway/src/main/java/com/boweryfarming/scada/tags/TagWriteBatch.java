@@ -0,0 +1,100 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.inductiveautomation.ignition.common.model.values.QualityCode;
+
+/**
+ * Tag values to write in ordered stages.
+ *
+ * All writes of a stage are sent in one writeAsync call. A stage is written only after every write
+ * of the previous stage completed good, e.g. the routing destination is written before Present so
+ * the PLC never sees Present with an old destination. See
+ * {@link PublicTagManagerService#writeAsync(TagWriteBatch)}.
+ */
+public class TagWriteBatch {
+    final List<List<Write>> stages = new ArrayList<List<Write>>();
+
+    static class Write {
+        final PublicTag tag;
+        final Object value;
+
+        Write(PublicTag tag, Object value) {
+            this.tag = tag;
+            this.value = value;
+        }
+    }
+
+    public TagWriteBatch() {
+        stages.add(new ArrayList<Write>());
+    }
+
+    /** Add a write to the current stage */
+    public TagWriteBatch write(PublicTag tag, Object value) {
+        stages.get(stages.size() - 1).add(new Write(tag, value));
+        return this;
+    }
+
+    public TagWriteBatch write(TypedTag tag, Object value) {
+        return write(tag.getTag(), value);
+    }
+
+    /** Start a new stage, written after the current one completed good */
+    public TagWriteBatch then() {
+        if (!stages.get(stages.size() - 1).isEmpty()) {
+            stages.add(new ArrayList<Write>());
+        }
+        return this;
+    }
+
+    /** Per-tag results of a batch, tags of stages that weren't written have no result */
+    public static class Result {
+        private final Map<String, QualityCode> results = new LinkedHashMap<String, QualityCode>();
+        private int unwritten = 0;
+
+        void add(String path, QualityCode code) {
+            results.put(path, code);
+        }
+
+        void skip(int count) {
+            unwritten += count;
+        }
+
+        public Map<String, QualityCode> getResults() {
+            return Collections.unmodifiableMap(results);
+        }
+
+        /** Every tag of every stage was written with a good result */
+        public boolean isGood() {
+            if (unwritten > 0) {
+                return false;
+            }
+
+            for (QualityCode code : results.values()) {
+                if (code.isNotGood()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, QualityCode> entry : results.entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(entry.getKey()).append(":").append(entry.getValue());
+            }
+            if (unwritten > 0) {
+                sb.append(" unwritten:").append(unwritten);
+            }
+            return sb.toString();
+        }
+    }
+}
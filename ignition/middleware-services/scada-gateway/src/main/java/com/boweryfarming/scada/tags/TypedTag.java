@@ -0,0 +1,71 @@
+package com.boweryfarming.scada.tags;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.inductiveautomation.ignition.common.model.values.QualifiedValue;
+import com.inductiveautomation.ignition.common.model.values.QualityCode;
+import com.inductiveautomation.ignition.common.sqltags.model.types.DataType;
+
+/**
+ * Handle of a public tag with a known value type, resolved once when a service starts instead of
+ * looking the tag up by path on every event. See {@link PublicTagManagerService#longTag(String)}.
+ */
+public abstract class TypedTag {
+    final PublicTag tag;
+
+    TypedTag(PublicTag tag) {
+        this.tag = tag;
+    }
+
+    /** @throws RuntimeException when the data type of the tag doesn't fit the handle */
+    static void checkDataType(PublicTag tag, String handle, DataType... accepted) throws RuntimeException {
+        DataType dataType = tag.getDataType();
+        for (DataType type : accepted) {
+            if (type == dataType) {
+                return;
+            }
+        }
+        throw new RuntimeException("Tag:" + tag.getPath() + " is " + dataType + ", not a " + handle);
+    }
+
+    public PublicTag getTag() {
+        return tag;
+    }
+
+    public String getPath() {
+        return tag.getPath();
+    }
+
+    /**
+     * Bumped whenever the value or the quality changed, compare with a previously read version to
+     * check for a change without reading the value
+     */
+    public long getVersion() {
+        return tag.getVersion();
+    }
+
+    /** Tag has a good value */
+    public boolean isGood() {
+        QualifiedValue qv = tag.getQualifiedValue();
+        return qv != null && qv.getValue() != null && qv.getQuality() != null && qv.getQuality().isGood();
+    }
+
+    /** Current value if it's good, null otherwise */
+    Object goodValue() {
+        QualifiedValue qv = tag.getQualifiedValue();
+        if (qv == null || qv.getQuality() == null || qv.getQuality().isNotGood()) {
+            return null;
+        }
+        return qv.getValue();
+    }
+
+    /** @see PublicTag#setValueAsync(Object) */
+    public CompletableFuture<QualityCode> setValueAsync(Object newValue) {
+        return tag.setValueAsync(newValue);
+    }
+
+    @Override
+    public String toString() {
+        return tag.getPath() + " (" + tag.getDataType() + ") version:" + tag.getVersion();
+    }
+}